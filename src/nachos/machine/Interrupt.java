@@ -4,9 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +50,9 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingQueue();
+
+	idleFastForward = Config.getBoolean("Interrupt.idleFastForward", true);
     }
 
     /**
@@ -120,17 +119,44 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time to the last kernel tick before the next
+     * pending interrupt comes due. The idle thread calls this, with
+     * interrupts disabled, when no other thread is ready to run. Since
+     * nothing can happen until an interrupt handler runs, this has the same
+     * effect as spinning through the intervening ticks, but without using
+     * any host CPU time.
+     *
+     * <p>
+     * Does nothing if <tt>Interrupt.idleFastForward</tt> is <tt>false</tt>.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	// keep the per-tick debugging output
+	if (!idleFastForward || pending.isEmpty() || Lib.test(dbgInt))
+	    return;
+
+	Stats stats = privilege.stats;
+	long ticks = pending.firstTime() - stats.totalTicks;
+	long count = (ticks + Stats.KernelTick - 1) / Stats.KernelTick - 1;
+
+	if (count > 0) {
+	    stats.kernelTicks += count * Stats.KernelTick;
+	    stats.totalTicks += count * Stats.KernelTick;
+	}
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	pending.add(time, numPendingInterruptsCreated++, type, handler);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +179,47 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private void tick(boolean inKernelMode, int count) {
+	Lib.assertTrue(count > 0);
+
+	// debugging output is printed once per tick
+	if (Lib.test(dbgInt)) {
+	    for (int i=0; i<count; i++)
+		tick(inKernelMode);
+	    return;
+	}
+
+	// nothing can come due before the last tick, so skip straight to it
+	Stats stats = privilege.stats;
+	long ticks = (long) (count-1) *
+	    (inKernelMode ? Stats.KernelTick : Stats.UserTick);
+
+	if (inKernelMode)
+	    stats.kernelTicks += ticks;
+	else
+	    stats.userTicks += ticks;
+	stats.totalTicks += ticks;
+
+	Lib.assertTrue(pending.isEmpty() ||
+		       pending.firstTime() > stats.totalTicks);
+
+	tick(inKernelMode);
+    }
+
+    private int userTicksUntilNextInterrupt() {
+	// keep ticking one at a time so the debugging output stays in order
+	if (Lib.test(dbgInt))
+	    return 1;
+
+	if (pending.isEmpty())
+	    return Integer.MAX_VALUE;
+
+	long ticks = pending.firstTime() - privilege.stats.totalTicks;
+	long count = (ticks + Stats.UserTick - 1) / Stats.UserTick;
+
+	return (int) Math.max(1, Math.min(count, Integer.MAX_VALUE));
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -164,24 +231,22 @@ public final class Interrupt {
 	if (pending.isEmpty())
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.firstTime() > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (!pending.isEmpty() && pending.firstTime() <= time) {
+	    String type = pending.firstType();
+	    Runnable handler = pending.firstHandler();
+	    pending.removeFirst();
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,44 +257,149 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
-	}
+	pending.print();
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * The pending interrupts, in a binary min-heap ordered by time and then
+     * by the order in which they were scheduled. The entries are kept in
+     * parallel arrays, so scheduling and invoking interrupts allocates
+     * nothing once the arrays have grown large enough.
+     */
+    private static class PendingQueue {
+	boolean isEmpty() {
+	    return size == 0;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	long firstTime() {
+	    return times[0];
+	}
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+	String firstType() {
+	    return types[0];
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	Runnable firstHandler() {
+	    return handlers[0];
+	}
+
+	void add(long time, long id, String type, Runnable handler) {
+	    if (size == times.length)
+		grow();
+
+	    // sift the hole up until the parent comes first
+	    int i = size++;
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!before(time, id, parent))
+		    break;
+
+		move(parent, i);
+		i = parent;
+	    }
+
+	    set(i, time, id, type, handler);
+	}
+
+	void removeFirst() {
+	    Lib.assertTrue(size > 0);
+
+	    int last = --size;
+	    long time = times[last];
+	    long id = ids[last];
+	    String type = types[last];
+	    Runnable handler = handlers[last];
+
+	    // let go of the handler
+	    types[last] = null;
+	    handlers[last] = null;
+
+	    if (last == 0)
+		return;
+
+	    // sift the last entry down from the root
+	    int i = 0;
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size && before(times[child+1], ids[child+1], child))
+		    child++;
+
+		if (before(time, id, child))
+		    break;
+
+		move(child, i);
+		i = child;
+	    }
+
+	    set(i, time, id, type, handler);
+	}
+
+	void print() {
+	    // print in the order the interrupts will occur
+	    int[] order = new int[size];
+	    for (int i=0; i<size; i++) {
+		int j = i;
+		while (j > 0 &&
+		       before(times[i], ids[i], order[j-1])) {
+		    order[j] = order[j-1];
+		    j--;
+		}
+		order[j] = i;
+	    }
+
+	    for (int i=0; i<size; i++) {
+		System.out.println("  " + types[order[i]] +
+				   ", scheduled at " + times[order[i]]);
+	    }
+	}
+
+	private boolean before(long time, long id, int i) {
+	    return time < times[i] || (time == times[i] && id < ids[i]);
+	}
+
+	private void move(int from, int to) {
+	    set(to, times[from], ids[from], types[from], handlers[from]);
+	}
+
+	private void set(int i, long time, long id, String type,
+			 Runnable handler) {
+	    times[i] = time;
+	    ids[i] = id;
+	    types[i] = type;
+	    handlers[i] = handler;
+	}
+
+	private void grow() {
+	    int capacity = times.length * 2;
+
+	    long[] newTimes = new long[capacity];
+	    long[] newIds = new long[capacity];
+	    String[] newTypes = new String[capacity];
+	    Runnable[] newHandlers = new Runnable[capacity];
 
-	private long id;
+	    System.arraycopy(times, 0, newTimes, 0, size);
+	    System.arraycopy(ids, 0, newIds, 0, size);
+	    System.arraycopy(types, 0, newTypes, 0, size);
+	    System.arraycopy(handlers, 0, newHandlers, 0, size);
+
+	    times = newTimes;
+	    ids = newIds;
+	    types = newTypes;
+	    handlers = newHandlers;
+	}
+
+	private long[] times = new long[initialCapacity];
+	private long[] ids = new long[initialCapacity];
+	private String[] types = new String[initialCapacity];
+	private Runnable[] handlers = new Runnable[initialCapacity];
+	private int size = 0;
+
+	private static final int initialCapacity = 16;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +407,8 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private boolean idleFastForward;
+    private PendingQueue pending;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +420,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, int count) {
+	    Interrupt.this.tick(inKernelMode, count);
+	}
+
+	public int userTicksUntilNextInterrupt() {
+	    return Interrupt.this.userTicksUntilNextInterrupt();
+	}
     }
 }
@@ -177,6 +177,14 @@ public final class Machine {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
 	    processor = new Processor(privilege, numPhysPages);
+
+	    int numProcessors = Config.getInteger("Machine.numProcessors", 1);
+	    Lib.assertTrue(numProcessors >= 1);
+
+	    processors = new Processor[numProcessors];
+	    processors[0] = processor;
+	    for (int i=1; i<numProcessors; i++)
+		processors[i] = new Processor(privilege, processor);
 	}				      
 
 	if (Config.getBoolean("Machine.console"))
@@ -322,6 +330,28 @@ public final class Machine {
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
     public static Processor processor() { return processor; }
+
+    /**
+     * Return the specified MIPS processor. Processor 0 is the one returned by
+     * <tt>processor()</tt>; the others, if <tt>Machine.numProcessors</tt> is
+     * greater than 1, share its physical memory.
+     *
+     * @param	cpu	the number of the processor.
+     * @return	the MIPS processor.
+     */
+    public static Processor processor(int cpu) {
+	Lib.assertTrue(cpu >= 0 && cpu < numProcessors());
+	return processors[cpu];
+    }
+
+    /**
+     * Return the number of MIPS processors.
+     *
+     * @return	the number of processors, or 0 if there are none.
+     */
+    public static int numProcessors() {
+	return (processors == null) ? 0 : processors.length;
+    }
     
     /**
      * Return the hardware console.
@@ -355,6 +385,7 @@ public final class Machine {
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
+    private static Processor[] processors = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
@@ -18,6 +18,9 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ * Further processors can be attached to the same memory, as the other CPUs of
+ * a multiprocessor; each has its own registers and its own page table or
+ * TLB.
  */
 public final class Processor {
     /**
@@ -29,10 +32,35 @@ public final class Processor {
      *				attach.
      */
     public Processor(Privilege privilege, int numPhysPages) {
+	this(privilege, numPhysPages, null);
+    }
+
+    /**
+     * Allocate a new MIPS processor that shares the physical memory of the
+     * specified processor.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	first		the processor that was allocated with the
+     *				memory.
+     */
+    public Processor(Privilege privilege, Processor first) {
+	this(privilege, first.numPhysPages, first);
+    }
+
+    private Processor(Privilege privilege, int numPhysPages, Processor first) {
 	System.out.print(" processor");
 
 	this.privilege = privilege;
-	privilege.processor = new ProcessorPrivilege();
+
+	// the first processor flushes the pipelines of all of them
+	if (first == null) {
+	    privilege.processor = new ProcessorPrivilege();
+	}
+	else {
+	    nextProcessor = first.nextProcessor;
+	    first.nextProcessor = this;
+	}
 
 	Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 	Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
@@ -45,7 +73,27 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	for (int i=0; i<translationCacheSize; i++)
+	    cachedVPNs[i] = -1;
+
+	if (first == null)
+	    mainMemory = new byte[pageSize * numPhysPages];
+	else
+	    mainMemory = first.mainMemory;
+	decodedPages = new DecodedInstruction[numPhysPages][];
+
+	if (Config.getBoolean("Processor.blockTranslation", false)) {
+	    blockThreshold = Config.getInteger("Processor.blockThreshold",
+					       defaultBlockThreshold);
+	    blockPages = new BasicBlock[numPhysPages][];
+	    blockCounts = new int[numPhysPages][];
+
+	    // a store by any processor makes the others' blocks stale
+	    if (first == null)
+		pageVersions = new int[numPhysPages];
+	    else
+		pageVersions = first.pageVersions;
+	}
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -92,19 +140,187 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	// the translation tier would hide per-instruction debugging output
+	boolean useBlocks = (blockPages != null &&
+			     !Lib.test(dbgProcessor) &&
+			     !Lib.test(dbgDisassemble) &&
+			     !Lib.test(dbgFullDisassemble));
+
+	// the kernel may have loaded new code before we got here
+	kernelEpoch++;
 	
 	while (true) {
+	    // only the last instruction of a batch can cause an interrupt, so
+	    // the whole batch is accounted for with a single tick
+	    int budget = privilege.interrupt.userTicksUntilNextInterrupt();
+	    numBatched = 0;
+	    
 	    try {
-		inst.run();
+		while (numBatched < budget) {
+		    if (useBlocks) {
+			runBlock(inst, budget);
+		    }
+		    else {
+			inst.run();
+			numBatched++;
+		    }
+		}
 	    }
 	    catch (MipsException e) {
+		// the kernel must see the time of the faulting instruction
+		if (numBatched > 0) {
+		    userTicks += numBatched * Stats.UserTick;
+		    privilege.interrupt.tick(false, numBatched);
+		}
+
 		e.handle();
+		numBatched = 1;
 	    }
 
-	    privilege.interrupt.tick(false);
+	    userTicks += numBatched * Stats.UserTick;
+	    privilege.interrupt.tick(false, numBatched);
+	}
+    }
+
+    /**
+     * Return the number of clock ticks this processor has spent executing
+     * user instructions. Summed over all processors, this is the machine's
+     * total of user ticks.
+     *
+     * @return	the user ticks of this processor.
+     */
+    public long getUserTicks() {
+	return userTicks;
+    }
+
+    /**
+     * Execute user instructions starting at the current PC, using a
+     * translated basic block if the code at the PC is hot enough to have
+     * one. Otherwise, interpret a single instruction.
+     *
+     * <p>
+     * Every instruction that completes is counted in <tt>numBatched</tt>,
+     * and no more than <i>budget</i> instructions are counted in all.
+     * Within a batch no interrupt handler can run, so the block is only
+     * abandoned when a store modifies the page the block came from.
+     *
+     * @param	inst	the instruction state of the running thread.
+     * @param	budget	the number of instructions in the current batch.
+     * @exception	MipsException	if an instruction caused an exception.
+     */
+    private void runBlock(Instruction inst, int budget) throws MipsException {
+	int pc = registers[regPC];
+	int paddr = translate(pc, 4, false);
+
+	// blocks assume sequential execution, so not from inside a delay slot
+	BasicBlock block = null;
+	if (registers[regNextPC] == pc+4)
+	    block = lookupBlock(paddr);
+
+	if (block == null) {
+	    inst.run(paddr);
+	    numBatched++;
+	    return;
+	}
+
+	DecodedInstruction[] code = block.code;
+	int ppn = paddr / pageSize;
+	int length = Math.min(code.length, budget - numBatched);
+
+	for (int i=0; i<length; i++) {
+	    inst.run(code[i]);
+	    numBatched++;
+
+	    if (pageVersions[ppn] != block.version)
+		break;
 	}
     }
 
+    /**
+     * Return the translated block starting at the specified physical address,
+     * or <tt>null</tt> if the code there should be interpreted. A block is
+     * translated once its start address has been reached
+     * <tt>Processor.blockThreshold</tt> times.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the block starting at <i>paddr</i>, or <tt>null</tt>.
+     */
+    private BasicBlock lookupBlock(int paddr) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) >> 2;
+
+	BasicBlock[] blocks = blockPages[ppn];
+	if (blocks == null) {
+	    blocks = new BasicBlock[pageSize/4];
+	    blockPages[ppn] = blocks;
+	    blockCounts[ppn] = new int[pageSize/4];
+	}
+
+	BasicBlock block = blocks[index];
+	if (block != null && block.isValid(ppn)) {
+	    return block;
+	}
+
+	blocks[index] = null;
+	if (++blockCounts[ppn][index] < blockThreshold)
+	    return null;
+
+	blockCounts[ppn][index] = 0;
+	block = translateBlock(paddr);
+	blocks[index] = block;
+
+	return block;
+    }
+
+    /**
+     * Translate the basic block starting at the specified physical address.
+     * The block extends up to and including the delay slot of the first
+     * branch, or up to the first syscall or invalid instruction, but never
+     * past the end of the physical page.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the new block, or <tt>null</tt> if there is nothing worth
+     *		translating.
+     */
+    private BasicBlock translateBlock(int paddr) {
+	int pageEnd = (paddr / pageSize + 1) * pageSize;
+	int length = 0;
+
+	for (int addr=paddr; addr<pageEnd && length<maxBlockLength; addr+=4) {
+	    DecodedInstruction decoded =
+		lookupDecoded(addr, Lib.bytesToInt(mainMemory, addr));
+
+	    if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		// the delay slot has to be in the block too
+		if (addr+4 < pageEnd)
+		    length += 2;
+		break;
+	    }
+
+	    length++;
+
+	    if (decoded.operation == Mips.SYSCALL ||
+		decoded.operation == Mips.UNIMPL ||
+		decoded.operation == Mips.INVALID)
+		break;
+	}
+
+	if (length < 2)
+	    return null;
+
+	DecodedInstruction[] code = new DecodedInstruction[length];
+	for (int i=0; i<length; i++) {
+	    int addr = paddr + i*4;
+	    code[i] = lookupDecoded(addr, Lib.bytesToInt(mainMemory, addr));
+	}
+
+	Lib.debug(dbgBlocks, "translated block at paddr=0x" +
+		  Lib.toHexString(paddr) + ", " + length + " instructions");
+
+	return new BasicBlock(paddr, code, pageVersions[paddr / pageSize]);
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +391,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	kernelEpoch++;
     }
 
     /**
@@ -216,6 +433,7 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	kernelEpoch++;
     }
 
     /**
@@ -308,6 +526,16 @@ public final class Processor {
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
+	// try the translation cache first
+	int slot = ((vpn << 1) | (writing ? 1 : 0)) & (translationCacheSize-1);
+	if (cachedVPNs[slot] == vpn && cachedEpochs[slot] == kernelEpoch) {
+	    int paddr = cachedPageBases[slot] + offset;
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+	    return paddr;
+	}
+
 	TranslationEntry entry = null;
 
 	// if not using a TLB, then the vpn is an index into the table
@@ -357,11 +585,50 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
+	// the used (and dirty) bit is now set, so this access type can skip
+	// the entry until the kernel next runs
+	cachedVPNs[slot] = vpn;
+	cachedPageBases[slot] = ppn*pageSize;
+	cachedEpochs[slot] = kernelEpoch;
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
 
+    /**
+     * Return the predecoded form of the instruction word at the specified
+     * physical address, decoding it only if it is not already cached.
+     *
+     * <p>
+     * Cache entries are kept per physical page and are validated against the
+     * word just fetched, so a page that is written (by a store, or by the
+     * kernel directly through <tt>getMemory()</tt>) or remapped to a
+     * different program can never hand back a stale decoding.
+     *
+     * @param	paddr	the physical address the instruction was fetched from.
+     * @param	value	the instruction word at <i>paddr</i>.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction lookupDecoded(int paddr, int value) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) >> 2;
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize/4];
+	    decodedPages[ppn] = page;
+	}
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -406,8 +673,13 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true);
+
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	// any translated block on this page may now be stale
+	if (pageVersions != null)
+	    pageVersions[paddr / pageSize]++;
     }
 
     /**
@@ -555,17 +827,73 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /** Predecoded instructions, indexed by physical page and word. */
+    private DecodedInstruction[][] decodedPages;
+
+    /**
+     * Translated basic blocks, indexed by physical page and word, or
+     * <tt>null</tt> if the translation tier is disabled.
+     */
+    private BasicBlock[][] blockPages = null;
+    /** Number of times each untranslated block start has been reached. */
+    private int[][] blockCounts;
+    /** Incremented whenever the processor stores to a physical page. */
+    private int[] pageVersions = null;
+    /**
+     * Incremented whenever the kernel gets control, since it may then write
+     * main memory or modify translation entries directly, and whenever the
+     * page table or TLB is replaced.
+     */
+    private int kernelEpoch = 0;
+
+    /**
+     * Number of user instructions completed in the current batch that have
+     * not been accounted for by <tt>tick()</tt> yet.
+     */
+    private int numBatched = 0;
+
+    /**
+     * Direct-mapped cache of recent translations, indexed by virtual page
+     * number and access type. An entry is only valid during the
+     * <tt>kernelEpoch</tt> in which it was filled.
+     */
+    private int[] cachedVPNs = new int[translationCacheSize];
+    /** The physical address of the first byte of each cached page. */
+    private int[] cachedPageBases = new int[translationCacheSize];
+    /** The <tt>kernelEpoch</tt> in which each cache entry was filled. */
+    private int[] cachedEpochs = new int[translationCacheSize];
+
+    /** Number of translation cache entries. Must be a power of two. */
+    private static final int translationCacheSize = 128;
+    /** Executions of a block start needed before it is translated. */
+    private int blockThreshold;
+
+    /** The default value of <tt>Processor.blockThreshold</tt>. */
+    private static final int defaultBlockThreshold = 16;
+    /** The maximum number of instructions in a translated block. */
+    private static final int maxBlockLength = 64;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
+    /** The next processor sharing this one's memory, or <tt>null</tt>. */
+    private Processor nextProcessor = null;
+    /** The clock ticks spent executing user instructions. */
+    private long userTicks = 0;
 
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgBlocks = 'b';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
-	    finishLoad();
+	    for (Processor processor = Processor.this; processor != null;
+		 processor = processor.nextProcessor) {
+		processor.finishLoad();
+
+		// an interrupt handler is about to run kernel code
+		processor.kernelEpoch++;
+	    }
 	}
     }
 
@@ -593,6 +921,7 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    kernelEpoch++;
 
 	    Lib.assertTrue(exceptionHandler != null);
 
@@ -607,29 +936,15 @@ public final class Processor {
 	private int cause, badVAddr;
     }	
 
-    private class Instruction {
-	public void run() throws MipsException {
-	    // hopefully this looks familiar to 152 students?
-	    fetch();
-	    decode();
-	    execute();
-	    writeBack();
-	}	
-
-	private boolean test(int flag) {
-	    return Lib.test(flag, flags);
-	}
-
-	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * extracted once by <tt>lookupDecoded()</tt> and reused every time the
+     * same word is executed.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
 
-	    value = readMem(registers[regPC], 4);
-	}
-	
-	private void decode() {
 	    op = Lib.extract(value, 26, 6);
 	    rs = Lib.extract(value, 21, 5);
 	    rt = Lib.extract(value, 16, 5);
@@ -637,7 +952,7 @@ public final class Processor {
 	    sh = Lib.extract(value, 6, 5);
 	    func = Lib.extract(value, 0, 6);
 	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    signedImm = Lib.extend(value, 0, 16);
 
 	    Mips info;
 	    switch (op) {
@@ -657,24 +972,18 @@ public final class Processor {
 	    format = info.format;
 	    flags = info.flags;
 
-	    mask = 0xFFFFFFFF;	
-	    branch = true;
-	
 	    // get memory access size
-	    if (test(Mips.SIZEB))
+	    if (Lib.test(Mips.SIZEB, flags))
 		size = 1;
-	    else if (test(Mips.SIZEH))
+	    else if (Lib.test(Mips.SIZEH, flags))
 		size = 2;
-	    else if (test(Mips.SIZEW))
+	    else if (Lib.test(Mips.SIZEW, flags))
 		size = 4;
 	    else
 		size = 0;
 
-	    // get nextPC
-	    nextPC = registers[regNextPC]+4;
-
 	    // get dstReg
-	    if (test(Mips.DSTRA))
+	    if (Lib.test(Mips.DSTRA, flags))
 		dstReg = regRA;
 	    else if (format == Mips.IFMT)
 		dstReg = rt;
@@ -683,21 +992,146 @@ public final class Processor {
 	    else
 		dstReg = -1;
 
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = signedImm & 0xFFFF;
+	    else
+		imm = signedImm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm, signedImm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg;
+    }
+
+    /**
+     * A straight-line run of predecoded instructions, ending with a branch
+     * and its delay slot, translated by <tt>translateBlock()</tt>.
+     */
+    private class BasicBlock {
+	BasicBlock(int paddr, DecodedInstruction[] code, int version) {
+	    this.paddr = paddr;
+	    this.code = code;
+	    this.version = version;
+	    this.epoch = kernelEpoch;
+	}
+
+	/**
+	 * Test whether this block still matches main memory. Stores by the
+	 * processor are caught by the page version; after the kernel has run,
+	 * the words themselves are compared once.
+	 */
+	boolean isValid(int ppn) {
+	    if (pageVersions[ppn] != version)
+		return false;
+
+	    if (epoch != kernelEpoch) {
+		for (int i=0; i<code.length; i++) {
+		    if (Lib.bytesToInt(mainMemory, paddr + i*4) != code[i].value)
+			return false;
+		}
+		epoch = kernelEpoch;
+	    }
+
+	    return true;
+	}
+
+	final int paddr;
+	final DecodedInstruction[] code;
+	final int version;
+	int epoch;
+    }
+
+    private class Instruction {
+	public void run() throws MipsException {
+	    // hopefully this looks familiar to 152 students?
+	    fetch();
+	    decode(lookupDecoded(paddr, value));
+	    execute();
+	    writeBack();
+	}	
+
+	/**
+	 * Run the instruction at the current PC, which has already been
+	 * translated to the specified physical address.
+	 */
+	public void run(int paddr) throws MipsException {
+	    this.paddr = paddr;
+	    value = Lib.bytesToInt(mainMemory, paddr);
+
+	    decode(lookupDecoded(paddr, value));
+	    execute();
+	    writeBack();
+	}
+
+	/**
+	 * Run an instruction from a translated block. The block has already
+	 * been checked against main memory, so there is nothing to fetch.
+	 */
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    value = decoded.value;
+
+	    decode(decoded);
+	    execute();
+	    writeBack();
+	}
+
+	private boolean test(int flag) {
+	    return Lib.test(flag, flags);
+	}
+
+	private void fetch() throws MipsException {
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) + ", size=4");
+
+	    paddr = translate(registers[regPC], 4, false);
+	    value = Lib.bytesToInt(mainMemory, paddr);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+	}
+	
+	private void decode(DecodedInstruction decoded) {
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
+
+	    mask = 0xFFFFFFFF;	
+	    branch = true;
+
+	    // get nextPC
+	    nextPC = registers[regNextPC]+4;
+
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + (decoded.signedImm<<2);
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,7 +1486,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
 
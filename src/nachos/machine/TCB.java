@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -19,6 +21,20 @@ import java.security.PrivilegedAction;
  * Nachos or have no useful effect.
  *
  * <p>
+ * Control is handed from one TCB to the next through a volatile flag in the
+ * next TCB. A waiting TCB parks with <tt>LockSupport.park()</tt> until its
+ * flag is set. If <tt>TCB.spinBudget</tt> is positive, it first spins on the
+ * flag for up to that many iterations, so on a multiprocessor host a thread
+ * that is switched back to soon never sleeps in the host OS. The budget
+ * defaults to 0.
+ *
+ * <p>
+ * If <tt>TCB.virtualThreads</tt> is <tt>true</tt>, each TCB after the first
+ * runs on a JVM virtual thread instead (if the JVM has them; otherwise on an
+ * ordinary thread). <tt>TCB.maxThreads</tt> raises the limit on the number
+ * of TCBs, which is mostly useful with virtual threads.
+ *
+ * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.
  */
@@ -40,6 +56,14 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	useVirtualThreads = Config.getBoolean("TCB.virtualThreads", false);
+	if (useVirtualThreads)
+	    findVirtualThreadBuilder();
+
+	spinBudget = Config.getInteger("TCB.spinBudget", 0);
+	Lib.assertTrue(spinBudget >= 0);
     }
     
     /**
@@ -66,7 +90,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +118,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newJavaThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -280,29 +304,79 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Waits until this TCB's <tt>running</tt> flag is set to <tt>true</tt>,
+     * first spinning for up to <tt>spinBudget</tt> iterations and then
+     * parking. <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go
+     * to wait for its turn to run. This includes the ping-pong process of
+     * starting and destroying TCBs, as well as in context switching from this
+     * TCB to another. We don't rely on <tt>currentTCB</tt>, since it is
+     * updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	for (int i=0; i<spinBudget; i++) {
+	    if (running)
+		return;
 	}
+
+	/* interrupt() only unparks us if it sees the parked flag, so set it
+	 * before checking running one last time. Both are volatile, so either
+	 * we see running set or interrupt() sees parked set.
+	 */
+	parked = true;
+	while (!running)
+	    LockSupport.park(this);
+	parked = false;
     }
 
     /**
-     * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>,
+     * and unparking its thread if it has stopped spinning. Used in the
+     * ping-pong process of starting and destroying TCBs, as well as in
+     * context switching to this TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+
+	if (parked)
+	    LockSupport.unpark(javaThread);
+    }
+
+    /**
+     * Create the Java thread for a new TCB: a virtual thread if
+     * <tt>TCB.virtualThreads</tt> is set and the JVM supports them, and an
+     * ordinary thread otherwise. Must be called with privilege.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (unstartedVirtualThread != null) {
+	    try {
+		return (Thread) unstartedVirtualThread.invoke(virtualThreadBuilder,
+							      target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(target);
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual().unstarted(Runnable)</tt>, which older
+     * JVMs do not have. Nachos is compiled against those, so the builder is
+     * found by reflection; if it is missing, ordinary threads are used.
+     */
+    private static void findVirtualThreadBuilder() {
+	try {
+	    virtualThreadBuilder =
+		Thread.class.getMethod("ofVirtual").invoke(null);
+	    unstartedVirtualThread =
+		Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+	}
+	catch (Exception e) {
+	    virtualThreadBuilder = null;
+	    unstartedVirtualThread = null;
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -332,6 +406,25 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The limit actually enforced on the number of started, non-destroyed
+     * TCBs. Set from <tt>TCB.maxThreads</tt>, <tt>maxThreads</tt> by default.
+     */
+    private static int threadLimit = maxThreads;
+
+    /** <tt>true</tt> if TCBs run on virtual threads when possible. */
+    private static boolean useVirtualThreads = false;
+    /** The result of <tt>Thread.ofVirtual()</tt>, if available. */
+    private static Object virtualThreadBuilder = null;
+    /** <tt>Thread.Builder.unstarted(Runnable)</tt>, if available. */
+    private static Method unstartedVirtualThread = null;
+
+    /**
+     * The number of times a TCB checks its <tt>running</tt> flag before
+     * parking. Set from <tt>TCB.spinBudget</tt>.
+     */
+    private static int spinBudget = 0;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -387,8 +480,18 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * Volatile, since it is what publishes everything the previous thread
+     * wrote to the next one.
+     */
+    private volatile boolean running = false;
+
+    /**
+     * <tt>true</tt> while the Java thread bound to this TCB is parked, or
+     * about to park, in <tt>waitForInterrupt()</tt>.
      */
-    private boolean running = false;
+    private volatile boolean parked = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
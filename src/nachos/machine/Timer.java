@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The periodic interrupt can be turned off, in which case the timer only
+ * interrupts when it is asked to with <tt>scheduleInterrupt()</tt>, like a
+ * one-shot hardware timer.
  */
 public final class Timer {
     /**
@@ -29,6 +34,10 @@ public final class Timer {
 	timerInterrupt = new Runnable() {
 		public void run() { timerInterrupt(); }
 	    };
+
+	oneShotInterrupt = new Runnable() {
+		public void run() { invokeHandler(); }
+	    };
 	
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
@@ -37,7 +46,33 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	schedulePeriodicInterrupt();
+    }
+
+    /**
+     * Turn the periodic timer interrupt on or off. An interrupt that is
+     * already scheduled still occurs after the periodic interrupt is turned
+     * off.
+     *
+     * @param	periodic	<tt>true</tt> to interrupt approximately every
+     *				500 clock ticks.
+     */
+    public void setPeriodic(boolean periodic) {
+	this.periodic = periodic;
+
+	if (periodic && !periodicPending)
+	    schedulePeriodicInterrupt();
+    }
+
+    /**
+     * Schedule a single timer interrupt, in addition to any others that are
+     * scheduled, to occur after the specified number of clock ticks.
+     *
+     * @param	delay	the number of clock ticks until the interrupt. Must
+     *			be positive.
+     */
+    public void scheduleInterrupt(long delay) {
+	privilege.interrupt.schedule(delay, "timer", oneShotInterrupt);
     }
 
     /**
@@ -60,7 +95,14 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	periodicPending = false;
+	if (periodic)
+	    schedulePeriodicInterrupt();
+
+	invokeHandler();
+    }
+
+    private void invokeHandler() {
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -69,11 +111,12 @@ public final class Timer {
 	    handler.run();
     }
 
-    private void scheduleInterrupt() {
+    private void schedulePeriodicInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
 	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	periodicPending = true;
     }
 
     private void scheduleAutoGraderInterrupt() {
@@ -82,6 +125,9 @@ public final class Timer {
 
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
+    private Runnable oneShotInterrupt;
+    private boolean periodic = true;
+    private boolean periodicPending = false;
     private Runnable autoGraderInterrupt;
 
     private Privilege privilege;
@@ -158,6 +158,28 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time as if <tt>tick(inKernelMode)</tt> had
+	 * been called <i>count</i> times in a row. No pending interrupt may
+	 * come due before the last of these ticks.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param count	the number of ticks to account for.
+	 */
+	public void tick(boolean inKernelMode, int count);
+
+	/**
+	 * Return the number of consecutive calls to <tt>tick(false)</tt> that
+	 * can be made before one of them might invoke an interrupt handler,
+	 * counting that one. Only the last of them can cause an interrupt.
+	 *
+	 * @return	the number of user ticks until the next pending interrupt
+	 *		is due, at least 1.
+	 */
+	public int userTicksUntilNextInterrupt();
     }
 
     /**
@@ -1,13 +1,33 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hashed timing wheel: a ring of slots, each
+ * covering <tt>slotTicks</tt> clock ticks, and each holding a doubly-linked
+ * list of the threads due to wake during any of the times that map to it. A
+ * thread starts sleeping in constant time, and each timer interrupt visits
+ * only the slots for the time that has passed since the last one, waking
+ * every thread that is due.
+ *
+ * <p>
+ * The same wheel keeps the timeouts of timed waits, such as
+ * <tt>Semaphore.tryP()</tt>: a thread waiting in a thread queue with a
+ * timeout is also in the wheel, and whichever of the two wakes it first takes
+ * it out of the other. Both arming and cancelling a timeout take constant
+ * time.
+ *
+ * <p>
+ * If <tt>Alarm.tickless</tt> is <tt>true</tt>, the timer does not interrupt
+ * periodically. Instead, the alarm schedules a single timer interrupt for the
+ * earlier of the next wake time and the end of the current time slice, and a
+ * time slice only starts when a thread other than the current one is ready
+ * to run. A lone thread then runs without interruption, an idle machine
+ * skips straight to the next wake time, and sleepers wake exactly on time.
  */
 public class Alarm {
     /**
@@ -18,58 +38,49 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
+	cursor = Machine.timer().getTime() / slotTicks;
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
+
+	setTickless(Config.getBoolean("Alarm.tickless", false));
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes every
+     * sleeping thread that is due, then causes the current thread to yield,
+     * forcing a context switch if there is another thread that should be
+     * run.
      */
     public void timerInterrupt() {
-	//KThread.currentThread().yield();
-        long currentTime = Machine.timer().getTime();
-        boolean intStatus = Machine.interrupt().disable();
-
-        ArrayList<Integer> indices = new ArrayList<Integer>();
-
-        if (!waitQueue.isEmpty()){
-            Tupla tupla = waitQueue.get(0);
-            if (tupla.getWakeTime() <= currentTime){
-                KThread thread = tupla.getThread();
-                if (thread != null){
-                    thread.ready();
-                }
-                waitQueue.remove(0);
-            }
-            
-        }
+	long currentTime = Machine.timer().getTime();
+	boolean intStatus = Machine.interrupt().disable();
 
-        /*
-        for (int i = 0; i < waitQueue.size(); i++){
-            if (waitQueue.get(i).getWakeTime() <= currentTime){
-                indices.add(i);
-            }
-        }
+	if (tickless) {
+	    // an interrupt that an earlier one has taken the place of
+	    if (currentTime < armedAt) {
+		Machine.interrupt().restore(intStatus);
+		return;
+	    }
 
-        Collections.sort(indices,Collections.reverseOrder());
-        System.out.println(waitQueue);
+	    armedAt = never;
+	    if (currentTime >= sliceEnd)
+		sliceEnd = never;
+	}
 
-        for (int i = 0;i<indices.size(); i++){
+	wakeDue(currentTime);
 
-            KThread thread = waitQueue.get(indices.get(i)).getThread();
-            if (thread != null){
-                thread.ready();
-            }
-            waitQueue.remove(indices.get(i));
-        }*/
-
-        KThread.yield();
-        Machine.interrupt().restore(intStatus);
+	if (tickless) {
+	    if (KThread.numReadyThreads() > 0)
+		threadReady();
+	    arm();
+	}
 
+	ThreadedKernel.scheduler.timerInterrupt();
+	KThread.yield();
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -87,35 +98,397 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-        long wakeTime = Machine.timer().getTime() + x;
-        KThread thread = KThread.currentThread();
-        Tupla tupla = new Tupla(thread, wakeTime);
-        boolean intStatus = Machine.interrupt().disable();
-        waitQueue.add(tupla);
-        thread.sleep();
-        Machine.interrupt().restore(intStatus);
+	waitUntil(x, null);
+    }
+
+    /**
+     * Put the current thread to sleep for at least <i>x</i> ticks, as
+     * <tt>waitUntil(x)</tt> does, unless the specified thread queue gives it
+     * access first. The current thread must already be waiting in
+     * <tt>waitQueue</tt>. If the time runs out first, the thread is removed
+     * from <tt>waitQueue</tt> and woken without access.
+     *
+     * @param	x		the maximum number of clock ticks to wait.
+     * @param	waitQueue	the queue the current thread is waiting in, or
+     *				<tt>null</tt> if it is only sleeping.
+     * @return	<tt>true</tt> if <tt>waitQueue</tt> gave the current thread
+     *		access before the time ran out.
+     */
+    boolean waitUntil(long x, ThreadQueue waitQueue) {
+	long wakeTime = Machine.timer().getTime() + x;
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	Timeout timeout = new Timeout(thread, wakeTime, waitQueue);
+	thread.timeout = timeout;
+
+	add(timeout);
+	if (tickless)
+	    arm();
+
+	KThread.sleep();
+
+	// woken by the queue, so the timeout is no longer needed
+	if (timeout.pending)
+	    remove(timeout);
+	thread.timeout = null;
+
+	Machine.interrupt().restore(intStatus);
+
+	return !timeout.expired;
+    }
+
+    /**
+     * Cancel the timeout of a thread sleeping in <tt>waitUntil()</tt> or in a
+     * timed wait, and wake it now. A thread in a timed wait stops waiting, as
+     * if its time had run out.
+     *
+     * @param	thread	the thread to wake.
+     * @return	<tt>true</tt> if the thread had a timeout pending.
+     */
+    public boolean cancel(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Timeout timeout = thread.timeout;
+	boolean pending = (timeout != null && timeout.pending);
+	if (pending)
+	    expire(timeout);
+
+	Machine.interrupt().restore(intStatus);
+
+	return pending;
+    }
+
+    /**
+     * Called by <tt>KThread.ready()</tt> when a thread other than the current
+     * one becomes ready to run. In tickless mode, starts a time slice for the
+     * current thread if one is not already running.
+     */
+    void threadReady() {
+	if (!tickless || sliceEnd != never)
+	    return;
+
+	sliceEnd = Machine.timer().getTime() + Stats.TimerTicks;
+	arm();
+    }
+
+    /**
+     * Switch between periodic timer interrupts and tickless mode.
+     *
+     * @param	tickless	<tt>true</tt> to schedule timer interrupts only
+     *				when they are needed.
+     */
+    private void setTickless(boolean tickless) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	this.tickless = tickless;
+	armedAt = never;
+	sliceEnd = never;
+
+	Machine.timer().setPeriodic(!tickless);
+
+	if (tickless) {
+	    if (KThread.numReadyThreads() > 0)
+		threadReady();
+	    arm();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Make sure a timer interrupt is scheduled for the next wake time or
+     * the end of the time slice, whichever comes first.
+     */
+    private void arm() {
+	long next = Math.min(nextWakeTime(), sliceEnd);
+	if (next >= armedAt)
+	    return;
+
+	armedAt = next;
+	Machine.timer().scheduleInterrupt(
+	    Math.max(next - Machine.timer().getTime(), 1));
+    }
+
+    /**
+     * Return the earliest wake time of any sleeper, scanning the wheel from
+     * the cursor if the sleeper that had it has been woken.
+     */
+    private long nextWakeTime() {
+	if (numSleepers == 0)
+	    return never;
+
+	if (nextWake != never)
+	    return nextWake;
+
+	// the first slot with a sleeper due on this turn of the wheel
+	for (long when = cursor; when < cursor + numSlots; when++) {
+	    Timeout sleeper = heads[(int) (when & (numSlots-1))];
+	    for (; sleeper != null; sleeper = sleeper.next) {
+		if (sleeper.wakeTime / slotTicks <= when)
+		    nextWake = Math.min(nextWake, sleeper.wakeTime);
+	    }
+
+	    if (nextWake != never)
+		return nextWake;
+	}
+
+	// every sleeper is at least a turn away
+	for (int slot=0; slot<numSlots; slot++) {
+	    Timeout sleeper = heads[slot];
+	    for (; sleeper != null; sleeper = sleeper.next)
+		nextWake = Math.min(nextWake, sleeper.wakeTime);
+	}
+
+	return nextWake;
     }
 
-    private class Tupla{
-        public Tupla (KThread thread, long waketime){
-            this.thread = thread;
-            this.waketime = waketime;
-        }        
-        public KThread getThread(){
-            return this.thread;
-        }
-        public long getWakeTime(){
-            return this.waketime;
-        }
+    /**
+     * Take a timeout out of the wheel and wake its thread, removing it from
+     * the queue it is waiting in. If that queue has already given the thread
+     * access, it is awake already and the timeout is simply dropped.
+     */
+    private void expire(Timeout timeout) {
+	remove(timeout);
 
-        public String toString(){
-            return ""+this.waketime;
-        }
+	if (timeout.waitQueue == null ||
+	    timeout.waitQueue.cancel(timeout.thread)) {
+	    timeout.expired = true;
+	    timeout.thread.ready();
+	}
+    }
 
-        private KThread thread;
-        private long waketime;
+    /**
+     * Add a sleeper to the end of the slot for its wake time. A sleeper
+     * whose wake time has already passed goes in the slot the next timer
+     * interrupt visits first.
+     */
+    private void add(Timeout sleeper) {
+	long when = Math.max(sleeper.wakeTime / slotTicks, cursor);
+	int slot = (int) (when & (numSlots-1));
 
+	sleeper.slot = slot;
+	sleeper.prev = tails[slot];
+	sleeper.next = null;
+
+	if (tails[slot] == null)
+	    heads[slot] = sleeper;
+	else
+	    tails[slot].next = sleeper;
+	tails[slot] = sleeper;
+
+	sleeper.pending = true;
+	numSleepers++;
+	if (numSleepers == 1 || nextWake != never)
+	    nextWake = Math.min(nextWake, sleeper.wakeTime);
     }
 
-    private ArrayList<Tupla> waitQueue = new ArrayList<Tupla>();
+    private void remove(Timeout sleeper) {
+	int slot = sleeper.slot;
+
+	if (sleeper.prev == null)
+	    heads[slot] = sleeper.next;
+	else
+	    sleeper.prev.next = sleeper.next;
+
+	if (sleeper.next == null)
+	    tails[slot] = sleeper.prev;
+	else
+	    sleeper.next.prev = sleeper.prev;
+
+	sleeper.prev = sleeper.next = null;
+	sleeper.pending = false;
+	numSleepers--;
+
+	if (sleeper.wakeTime == nextWake)
+	    nextWake = never;
+    }
+
+    /**
+     * Wake every sleeper that is due at the specified time, visiting the
+     * slots for the time since the last call in order. The slot for the
+     * current time is visited again next time, since the sleepers in it that
+     * are not yet due will be then.
+     */
+    private void wakeDue(long time) {
+	long last = time / slotTicks;
+
+	// no slot needs visiting more than once
+	long end = Math.min(last, cursor + numSlots - 1);
+
+	for (long when = cursor; numSleepers > 0 && when <= end; when++) {
+	    Timeout sleeper = heads[(int) (when & (numSlots-1))];
+
+	    while (sleeper != null) {
+		Timeout next = sleeper.next;
+
+		// sleepers a whole turn of the wheel or more away stay
+		if (sleeper.wakeTime <= time)
+		    expire(sleeper);
+
+		sleeper = next;
+	    }
+	}
+
+	cursor = last;
+    }
+
+    /**
+     * Return the number of sleepers linked into the wheel, checking that
+     * each is in the slot it records.
+     */
+    private int countSleepers() {
+	int count = 0;
+
+	for (int slot=0; slot<numSlots; slot++) {
+	    Timeout sleeper = heads[slot];
+	    Timeout prev = null;
+
+	    for (; sleeper != null; prev = sleeper, sleeper = sleeper.next) {
+		Lib.assertTrue(sleeper.slot == slot && sleeper.prev == prev);
+		Lib.assertTrue(sleeper.pending);
+		count++;
+	    }
+
+	    Lib.assertTrue(tails[slot] == prev);
+	}
+
+	return count;
+    }
+
+    private static class SleepTest implements Runnable {
+	SleepTest(long ticks, Semaphore done) {
+	    this.ticks = ticks;
+	    this.done = done;
+	}
+
+	public void run() {
+	    long start = Machine.timer().getTime();
+	    ThreadedKernel.alarm.waitUntil(ticks);
+	    elapsed = Machine.timer().getTime() - start;
+
+	    done.V();
+	}
+
+	private long ticks;
+	private Semaphore done;
+	private long elapsed;
+    }
+
+    /**
+     * Test the alarm in its current mode: sleepers wake no earlier than they
+     * asked to, even many turns of the wheel ahead, a cancelled sleeper
+     * wakes early, timed waits both expire and succeed, and none of this
+     * leaves anything behind in the wheel.
+     */
+    private void test() {
+	int sleepers = numSleepers;
+	Lib.assertTrue(countSleepers() == sleepers);
+
+	long[] ticks = {
+	    0, 1, slotTicks-1, slotTicks, Stats.TimerTicks, 1000,
+	    slotTicks*numSlots + 17, 3*slotTicks*numSlots + 5
+	};
+
+	Semaphore done = new Semaphore(0);
+	SleepTest[] tests = new SleepTest[ticks.length];
+
+	for (int i=ticks.length-1; i>=0; i--) {
+	    tests[i] = new SleepTest(ticks[i], done);
+	    new KThread(tests[i]).setName("sleeper " + i).fork();
+	}
+
+	for (int i=0; i<ticks.length; i++)
+	    done.P();
+
+	for (int i=0; i<ticks.length; i++)
+	    Lib.assertTrue(tests[i].elapsed >= ticks[i]);
+
+	// a cancelled sleeper wakes long before its time
+	long forever = 10*slotTicks*numSlots;
+	SleepTest test = new SleepTest(forever, done);
+	KThread thread = new KThread(test).setName("cancelled sleeper");
+	thread.fork();
+
+	while (!cancel(thread))
+	    KThread.yield();
+
+	done.P();
+	Lib.assertTrue(test.elapsed < forever);
+	Lib.assertTrue(!cancel(thread));
+
+	// a timed wait that runs out, and one that does not
+	final Semaphore semaphore = new Semaphore(0);
+	Lib.assertTrue(!semaphore.tryP(Stats.TimerTicks));
+
+	new KThread(new Runnable() {
+		public void run() { semaphore.V(); }
+	    }).setName("waker").fork();
+	Lib.assertTrue(semaphore.tryP(forever));
+
+	boolean intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(numSleepers == sleepers);
+	Lib.assertTrue(countSleepers() == sleepers);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test the alarm with periodic timer interrupts and in tickless mode.
+     */
+    public static void selfTest() {
+	Alarm alarm = ThreadedKernel.alarm;
+	boolean tickless = alarm.tickless;
+
+	alarm.test();
+	alarm.setTickless(!tickless);
+	alarm.test();
+	alarm.setTickless(tickless);
+    }
+
+    /**
+     * A thread waiting in the timing wheel, and the thread queue it is also
+     * waiting in, if any.
+     */
+    static class Timeout {
+	Timeout(KThread thread, long wakeTime, ThreadQueue waitQueue) {
+	    this.thread = thread;
+	    this.wakeTime = wakeTime;
+	    this.waitQueue = waitQueue;
+	}
+
+	KThread thread;
+	long wakeTime;
+	ThreadQueue waitQueue;
+	/** Whether this timeout is still in the wheel. */
+	boolean pending = false;
+	/** Whether the time ran out, or the timeout was cancelled. */
+	boolean expired = false;
+
+	int slot;
+	Timeout prev, next;
+    }
+
+    /** The number of clock ticks each slot covers. */
+    private static final int slotTicks = 64;
+    /** The number of slots. Must be a power of two. */
+    private static final int numSlots = 256;
+
+    private static final long never = Long.MAX_VALUE;
+
+    private Timeout[] heads = new Timeout[numSlots];
+    private Timeout[] tails = new Timeout[numSlots];
+    private int numSleepers = 0;
+    /** The slot, counted from time 0, the next timer interrupt visits first. */
+    private long cursor;
+    /**
+     * The earliest wake time of any sleeper, or <tt>never</tt> if it must
+     * be found again.
+     */
+    private long nextWake = never;
+
+    private boolean tickless;
+    /** The time of the timer interrupt scheduled next, in tickless mode. */
+    private long armedAt = never;
+    /** When the current time slice ends, in tickless mode. */
+    private long sliceEnd = never;
 }
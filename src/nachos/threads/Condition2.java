@@ -1,7 +1,6 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.ArrayList;
 
 /**
  * An implementation of condition variables that disables interrupt()s for
@@ -35,7 +34,7 @@ public class Condition2 {
     	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
         boolean intStatus = Machine.interrupt().disable();
-        waitQueue.add(KThread.currentThread());       
+        waitQueue.waitForAccess(KThread.currentThread());       
 
     	conditionLock.release();
         KThread.sleep();
@@ -44,6 +43,32 @@ public class Condition2 {
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically release the associated lock and go to sleep on this condition
+     * variable until another thread wakes it using <tt>wake()</tt>, or at
+     * least <i>timeout</i> clock ticks have passed. The current thread must
+     * hold the associated lock. The thread will automatically reacquire the
+     * lock before <tt>sleepFor()</tt> returns.
+     *
+     * @param	timeout	the maximum number of clock ticks to sleep.
+     * @return	<tt>true</tt> if the thread was woken, or <tt>false</tt> if
+     *		the time ran out first.
+     */
+    public boolean sleepFor(long timeout) {
+    	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+        waitQueue.waitForAccess(KThread.currentThread());
+
+    	conditionLock.release();
+        boolean woken = ThreadedKernel.alarm.waitUntil(timeout, waitQueue);
+
+    	conditionLock.acquire();
+        Machine.interrupt().restore(intStatus);
+
+        return woken;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -52,9 +77,8 @@ public class Condition2 {
 	    Lib.assertTrue(conditionLock.isHeldByCurrentThread());
         boolean intStatus = Machine.interrupt().disable();
 
-        if (!waitQueue.isEmpty()){
-            KThread thread = waitQueue.get(0);
-            waitQueue.remove(0);
+        KThread thread = waitQueue.nextThread();
+        if (thread != null){
             thread.ready();
         }
 
@@ -69,13 +93,15 @@ public class Condition2 {
 	    Lib.assertTrue(conditionLock.isHeldByCurrentThread());
         boolean intStatus = Machine.interrupt().disable();
 
-        while (!waitQueue.isEmpty()){
-            wake();
+        KThread thread;
+        while ((thread = waitQueue.nextThread()) != null){
+            thread.ready();
         }
 
         Machine.interrupt().restore(intStatus);
     }
 
     private Lock conditionLock;
-    private ArrayList<KThread> waitQueue = new ArrayList<KThread>();
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
 }
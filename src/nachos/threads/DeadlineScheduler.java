@@ -0,0 +1,524 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * A fair scheduler with a real-time class, scheduled earliest deadline first.
+ *
+ * <p>
+ * A thread becomes a real-time thread by declaring a period, a deadline and a
+ * cost with <tt>setRealTime()</tt>. Each time it becomes ready after blocking,
+ * a new job is released, with an absolute deadline <i>deadline</i> ticks
+ * after the release; releases are at least <i>period</i> ticks apart, so a
+ * thread that wakes early keeps the deadline it would have had. A waiting
+ * real-time thread is always dequeued before any ordinary thread, and among
+ * real-time threads the one with the earliest deadline goes first. Ordinary
+ * threads share the rest of the processor as under a <tt>FairScheduler</tt>.
+ *
+ * <p>
+ * A thread is only admitted if the sum of <i>cost</i>/<i>deadline</i> over
+ * all real-time threads stays at most <tt>DeadlineScheduler.maxUtilization</tt>
+ * (0.9 by default), in which case earliest deadline first meets every
+ * deadline. As in a constant bandwidth server, a job that uses up its cost
+ * is throttled: it waits with the ordinary threads until its deadline, and
+ * then gets a fresh cost and a deadline one period later. A thread that
+ * overruns therefore cannot make the others miss their deadlines, or starve
+ * the ordinary threads.
+ *
+ * <p>
+ * A job completes when the thread blocks or finishes. Completed jobs, the
+ * jobs that completed after their deadline, and the largest lateness are
+ * counted, and printed by <tt>printStats()</tt>. A real-time thread that is released while another thread is
+ * running is dispatched at the next timer interrupt at the latest.
+ */
+public class DeadlineScheduler extends FairScheduler {
+    /**
+     * Allocate a new deadline scheduler.
+     */
+    public DeadlineScheduler() {
+	double maxUtilization =
+	    Config.getDouble("DeadlineScheduler.maxUtilization", 0.9);
+	Lib.assertTrue(maxUtilization > 0 && maxUtilization <= 1);
+
+	maxReserved = (long) (maxUtilization * utilizationOne);
+    }
+
+    /**
+     * Allocate a new deadline thread queue.
+     *
+     * @param	transferPriority	ignored. Priority is never transferred.
+     * @return	a new deadline thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue();
+    }
+
+    public boolean setRealTime(KThread thread, long period, long deadline,
+			       long cost) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	DeadlineState state = (DeadlineState) getThreadState(thread);
+
+	long utilization = 0;
+	if (period != 0) {
+	    Lib.assertTrue(cost > 0 && cost <= deadline && deadline <= period);
+	    utilization = (cost * utilizationOne + deadline - 1) / deadline;
+	}
+
+	if (reserved - state.utilization + utilization > maxReserved)
+	    return false;
+
+	reserved += utilization - state.utilization;
+
+	// charge the time used so far in the old class
+	if (state == running)
+	    state.charge();
+
+	// take the thread out of the queue it is in while its class changes
+	DeadlineQueue queue = (DeadlineQueue) state.queuedOn;
+	if (queue != null)
+	    queue.remove(state);
+
+	state.period = period;
+	state.deadline = deadline;
+	state.cost = cost;
+	state.utilization = utilization;
+
+	// the job under the old timing ends here
+	state.completeJob(state == running ? Machine.timer().getTime()
+			  : state.stoppedAt);
+
+	// a thread that can run now starts its first job now, any other when
+	// it next becomes ready
+	if (state.isRealTime()) {
+	    state.release = Machine.timer().getTime() - period;
+	    if (state == running || queue != null)
+		state.releaseJob();
+	}
+
+	if (queue != null)
+	    queue.add(state);
+
+	return true;
+    }
+
+    /**
+     * Complete the job of the current thread, if it is a real-time thread,
+     * and give back its reservation.
+     */
+    public void finishingCurrentThread() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (running == null)
+	    return;
+
+	DeadlineState state = (DeadlineState) running;
+	state.completeJob(Machine.timer().getTime());
+	reserved -= state.utilization;
+	state.utilization = 0;
+    }
+
+    /**
+     * Print the number of real-time jobs that have completed, how many of
+     * them missed their deadline, and the largest lateness, if any real-time
+     * job has completed.
+     */
+    public void printStats() {
+	if (numJobs == 0)
+	    return;
+
+	System.out.println("Real-time: jobs " + numJobs
+			   + ", deadline misses " + numMisses
+			   + ", max lateness " + maxLateness);
+    }
+
+    /**
+     * Note when the thread that was running stopped, and start timing the
+     * specified thread.
+     */
+    public void runningThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (running != null)
+	    ((DeadlineState) running).stoppedAt = Machine.timer().getTime();
+
+	super.runningThread(thread);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new DeadlineState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the real-time thread with the
+     * earliest deadline, or, if no real-time threads are waiting, the
+     * ordinary thread with the lowest virtual runtime.
+     */
+    protected class DeadlineQueue extends FairQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    DeadlineState state = (DeadlineState) getThreadState(thread);
+	    if (!state.isRealTime()) {
+		super.waitForAccess(thread);
+		return;
+	    }
+
+	    Lib.assertTrue(state.queuedOn == null);
+
+	    if (state == running)
+		state.charge();
+	    else
+		state.releaseJob();
+
+	    add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    unthrottle();
+
+	    if (realTimeQueue.isEmpty())
+		return super.nextThread();
+
+	    DeadlineState state = realTimeQueue.first();
+	    remove(state);
+
+	    return state.thread;
+	}
+
+	protected ThreadState pickNextThread() {
+	    unthrottle();
+
+	    if (realTimeQueue.isEmpty())
+		return super.pickNextThread();
+
+	    return realTimeQueue.first();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<DeadlineState> i=realTimeQueue.iterator();
+		 i.hasNext(); )
+		System.out.print(i.next() + " ");
+
+	    super.print();
+	}
+
+	/**
+	 * Add a thread to this queue. A real-time thread that is throttled
+	 * waits with the ordinary threads until it is eligible again.
+	 */
+	void add(ThreadState threadState) {
+	    DeadlineState state = (DeadlineState) threadState;
+
+	    state.inRealTimeQueue = state.isRealTime() &&
+		Machine.timer().getTime() >= state.eligibleAt;
+
+	    if (!state.inRealTimeQueue) {
+		super.add(state);
+		if (state.isRealTime())
+		    throttled.add(state);
+		return;
+	    }
+
+	    Lib.assertTrue(state.queuedOn == null);
+
+	    state.queuedOn = this;
+	    realTimeQueue.add(state);
+	}
+
+	void remove(ThreadState threadState) {
+	    DeadlineState state = (DeadlineState) threadState;
+
+	    if (!state.inRealTimeQueue) {
+		super.remove(state);
+		if (state.isRealTime())
+		    throttled.remove(state);
+		return;
+	    }
+
+	    Lib.assertTrue(state.queuedOn == this);
+
+	    realTimeQueue.remove(state);
+	    state.queuedOn = null;
+	}
+
+	/**
+	 * Move the throttled threads that have become eligible again to the
+	 * real-time threads.
+	 */
+	private void unthrottle() {
+	    long time = Machine.timer().getTime();
+
+	    while (!throttled.isEmpty() && throttled.first().eligibleAt <= time) {
+		DeadlineState state = throttled.first();
+		remove(state);
+		add(state);
+	    }
+	}
+
+	/** The waiting real-time threads, ordered by deadline. */
+	private TreeSet<DeadlineState> realTimeQueue =
+	    new TreeSet<DeadlineState>(new DeadlineOrder());
+	/** The throttled real-time threads, ordered by when they are eligible. */
+	private TreeSet<DeadlineState> throttled =
+	    new TreeSet<DeadlineState>(new EligibleOrder());
+    }
+
+    /**
+     * Orders real-time threads by the deadline they are scheduled by, and
+     * then in order of creation.
+     */
+    private static class DeadlineOrder implements Comparator<DeadlineState> {
+	public int compare(DeadlineState a, DeadlineState b) {
+	    if (a.scheduledDeadline != b.scheduledDeadline)
+		return a.scheduledDeadline < b.scheduledDeadline ? -1 : 1;
+
+	    return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+	}
+    }
+
+    /**
+     * Orders throttled threads by when they can next run as real-time
+     * threads, and then in order of creation.
+     */
+    private static class EligibleOrder implements Comparator<DeadlineState> {
+	public int compare(DeadlineState a, DeadlineState b) {
+	    if (a.eligibleAt != b.eligibleAt)
+		return a.eligibleAt < b.eligibleAt ? -1 : 1;
+
+	    return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+	}
+    }
+
+    /**
+     * The scheduling state of a thread under a deadline scheduler: its fair
+     * scheduling state, plus, for a real-time thread, its timing and the
+     * state of its current job.
+     */
+    protected class DeadlineState extends ThreadState {
+	/**
+	 * Allocate a new <tt>DeadlineState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public DeadlineState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return <tt>true</tt> if the associated thread is a real-time
+	 * thread.
+	 */
+	boolean isRealTime() {
+	    return period != 0;
+	}
+
+	/**
+	 * Count the current job of the associated thread, if it has one, as
+	 * completed at the specified time.
+	 *
+	 * @param	time	when the job completed.
+	 */
+	void completeJob(long time) {
+	    if (!jobPending)
+		return;
+
+	    long lateness = time - jobDeadline;
+
+	    numJobs++;
+	    if (lateness > 0) {
+		numMisses++;
+		maxLateness = Math.max(maxLateness, lateness);
+
+		Lib.debug(dbgDeadline, thread + " missed its deadline by "
+			  + lateness + " ticks");
+	    }
+
+	    jobPending = false;
+	}
+
+	/**
+	 * Complete the previous job of the associated thread, which ended
+	 * when the thread last stopped running, and release a new one.
+	 */
+	void releaseJob() {
+	    completeJob(stoppedAt);
+
+	    release = Math.max(Machine.timer().getTime(), release + period);
+	    jobDeadline = release + deadline;
+	    jobPending = true;
+
+	    // a job cannot start with a deadline earlier than one that was
+	    // postponed because the previous job overran
+	    if (jobDeadline >= scheduledDeadline) {
+		scheduledDeadline = jobDeadline;
+		used = 0;
+	    }
+	}
+
+	/**
+	 * Account for the time the associated thread has run. Real-time
+	 * threads also advance their virtual runtime, so that they get no
+	 * more than their share while they are throttled. A real-time job that
+	 * has used up its cost is throttled until its deadline, and then gets
+	 * a fresh cost and a deadline a period later.
+	 */
+	protected void account(long ticks) {
+	    super.account(ticks);
+
+	    if (!isRealTime())
+		return;
+
+	    used += ticks;
+	    if (used < cost)
+		return;
+
+	    while (used >= cost) {
+		used -= cost;
+		eligibleAt = scheduledDeadline;
+		scheduledDeadline += period;
+	    }
+
+	    Lib.debug(dbgDeadline, thread + " throttled until " + eligibleAt);
+	}
+
+	public String toString() {
+	    if (!isRealTime())
+		return super.toString();
+
+	    return thread + " (deadline " + scheduledDeadline + ")";
+	}
+
+	/** The minimum time between job releases, or 0 if not real-time. */
+	protected long period = 0;
+	/** The time after its release by which each job should complete. */
+	protected long deadline;
+	/** The processor time each job needs. */
+	protected long cost;
+	/** The density reserved for this thread, in millionths. */
+	protected long utilization = 0;
+
+	/** When the current job was released. */
+	protected long release;
+	/** When the current job should complete. */
+	protected long jobDeadline;
+	/** The deadline the current job is scheduled by. */
+	protected long scheduledDeadline;
+	/** The processor time the current job has used against its cost. */
+	protected long used;
+	/** When a throttled thread can next run as a real-time thread. */
+	protected long eligibleAt = 0;
+	/** Whether the thread is waiting with the real-time threads. */
+	boolean inRealTimeQueue = false;
+	/** Whether a job has been released and not yet counted. */
+	protected boolean jobPending = false;
+	/** When the thread last stopped running. */
+	protected long stoppedAt;
+    }
+
+    /**
+     * Test admission control, that waiting real-time threads are dequeued
+     * earliest deadline first and before ordinary threads, that a job that
+     * uses up its cost waits with the ordinary threads until its deadline,
+     * and that a thread that finishes late counts its last job as a miss and
+     * gives back its reservation.
+     */
+    public static void selfTest() {
+	DeadlineScheduler scheduler = new DeadlineScheduler();
+
+	KThread slow = new KThread().setName("slow");
+	KThread fast = new KThread().setName("fast");
+	KThread greedy = new KThread().setName("greedy");
+	KThread ordinary = new KThread().setName("ordinary");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(scheduler.setRealTime(slow, 1000, 1000, 100));
+	Lib.assertTrue(scheduler.setRealTime(fast, 500, 500, 100));
+	Lib.assertTrue(!scheduler.setRealTime(greedy, 100, 100, 80));
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	queue.waitForAccess(ordinary);
+	queue.waitForAccess(slow);
+	queue.waitForAccess(fast);
+
+	Lib.assertTrue(queue.nextThread() == fast);
+	Lib.assertTrue(queue.nextThread() == slow);
+	Lib.assertTrue(queue.nextThread() == ordinary);
+
+	// fast uses up its cost, so it is throttled until its deadline
+	DeadlineState state = (DeadlineState) scheduler.getThreadState(fast);
+	state.account(100);
+	Lib.assertTrue(state.eligibleAt > Machine.timer().getTime());
+
+	queue.waitForAccess(ordinary);
+	queue.waitForAccess(fast);
+	Lib.assertTrue(queue.nextThread() == ordinary);
+	queue.waitForAccess(ordinary);
+
+	long eligibleAt = state.eligibleAt;
+
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntil(eligibleAt - Machine.timer().getTime());
+
+	intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(queue.nextThread() == fast);
+	Lib.assertTrue(queue.nextThread() == ordinary);
+
+	// fast runs past the deadline of its job, and then finishes
+	scheduler.runningThread(fast);
+	long jobDeadline = state.jobDeadline;
+	int numJobs = scheduler.numJobs;
+
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntil(jobDeadline - Machine.timer().getTime()
+				       + 1);
+
+	intStatus = Machine.interrupt().disable();
+
+	scheduler.finishingCurrentThread();
+	Lib.assertTrue(scheduler.numJobs == numJobs + 1);
+	Lib.assertTrue(scheduler.numMisses == 1 && scheduler.maxLateness > 0);
+	Lib.assertTrue(scheduler.setRealTime(greedy, 100, 100, 80));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /** A density of 1, in millionths. */
+    private static final long utilizationOne = 1000000;
+
+    /** The most density that can be reserved, in millionths. */
+    private long maxReserved;
+    /** The density reserved by all real-time threads, in millionths. */
+    private long reserved = 0;
+
+    /** The number of real-time jobs that have completed. */
+    private int numJobs = 0;
+    /** The number of real-time jobs that completed after their deadline. */
+    private int numMisses = 0;
+    /** The longest time by which a job has completed after its deadline. */
+    private long maxLateness = 0;
+
+    private static final char dbgDeadline = 'e';
+}
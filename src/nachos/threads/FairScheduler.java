@@ -0,0 +1,395 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+import java.util.Iterator;
+
+/**
+ * A scheduler that shares the processor fairly, in the style of the Linux
+ * completely fair scheduler.
+ *
+ * <p>
+ * Each thread has a <i>virtual runtime</i>: the processor time it has used,
+ * measured from when it is dispatched until another thread is, and scaled
+ * down by its weight. Threads of the default priority have the default
+ * weight, and each step up in priority multiplies the weight by 1.25. The
+ * next thread to be dequeued is always the waiting thread with the lowest
+ * virtual runtime, so over time each thread gets processor time in proportion
+ * to its weight, and no thread starves.
+ *
+ * <p>
+ * The waiting threads are kept in a balanced tree ordered by virtual runtime,
+ * so adding a thread and dequeueing the next one take logarithmic time,
+ * however many threads there are.
+ *
+ * <p>
+ * Each queue keeps a floor: the highest virtual runtime of any thread it has
+ * dequeued, which never goes down. A thread that starts waiting after it has
+ * been blocked gets a virtual runtime of at least the floor, less a credit of
+ * <tt>FairScheduler.sleeperCredit</tt> clock ticks, so that it runs soon
+ * after it wakes but cannot use the time it spent asleep to run for long. A
+ * new thread starts at the floor.
+ *
+ * <p>
+ * Priority is not transferred through locks or joins.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+	sleeperCredit = scale(Config.getInteger("FairScheduler.sleeperCredit",
+						Stats.TimerTicks),
+			      weights[priorityDefault]);
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. Priority is never transferred.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	ThreadState state = getThreadState(thread);
+
+	// charge the time used so far at the old weight
+	if (state == running)
+	    state.charge();
+
+	state.priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Charge the thread that was running for the time it used, and start
+     * timing the specified thread.
+     */
+    public void runningThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (running != null)
+	    running.charge();
+
+	running = getThreadState(thread);
+	running.runningSince = Machine.timer().getTime();
+	running.started = true;
+    }
+
+    /**
+     * The default priority for a new thread. Do not change this value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The maximum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMaximum = 7;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Convert a number of clock ticks into virtual runtime for a thread of
+     * the specified weight.
+     */
+    private static long scale(long ticks, int weight) {
+	return (ticks << 20) / weight;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+     * virtual runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.queuedOn == null);
+
+	    // the current thread is charged before its position is decided
+	    if (state == running)
+		state.charge();
+
+	    long floor = minVruntime;
+	    if (state.started && state != running)
+		floor -= sleeperCredit;
+	    state.vruntime = Math.max(state.vruntime, floor);
+
+	    add(state);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.queuedOn == this)
+		remove(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = pickNextThread();
+	    if (state == null)
+		return null;
+
+	    remove(state);
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+
+	    return state.thread;
+	}
+
+	public boolean cancel(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.queuedOn != this)
+		return false;
+
+	    remove(state);
+	    return true;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    return waitQueue.isEmpty() ? null : waitQueue.first();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); )
+		System.out.print(i.next() + " ");
+	}
+
+	void add(ThreadState state) {
+	    Lib.assertTrue(state.queuedOn == null);
+
+	    state.queuedOn = this;
+	    waitQueue.add(state);
+	}
+
+	void remove(ThreadState state) {
+	    Lib.assertTrue(state.queuedOn == this);
+
+	    waitQueue.remove(state);
+	    state.queuedOn = null;
+	}
+
+	/** The waiting threads, ordered by virtual runtime. */
+	private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>();
+	/** The highest virtual runtime of any thread dequeued so far. */
+	private long minVruntime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread. This keeps track of the thread's
+     * priority and virtual runtime.
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.id = numThreadStates++;
+	}
+
+	/**
+	 * Charge the associated thread for the time it has run since it was
+	 * dispatched or last charged. If the thread is waiting in a queue, it
+	 * moves to its new place.
+	 */
+	void charge() {
+	    long time = Machine.timer().getTime();
+	    long delta = time - runningSince;
+	    runningSince = time;
+
+	    if (delta == 0)
+		return;
+
+	    FairQueue queue = queuedOn;
+	    if (queue != null)
+		queue.remove(this);
+
+	    account(delta);
+
+	    if (queue != null)
+		queue.add(this);
+	}
+
+	/**
+	 * Account for the associated thread having run for the specified
+	 * number of clock ticks, while it is in no queue.
+	 *
+	 * @param	ticks	the time the thread ran.
+	 */
+	protected void account(long ticks) {
+	    vruntime += scale(ticks, weights[priority]);
+	}
+
+	public int compareTo(ThreadState state) {
+	    if (vruntime != state.vruntime)
+		return vruntime < state.vruntime ? -1 : 1;
+
+	    return id < state.id ? -1 : (id == state.id ? 0 : 1);
+	}
+
+	public String toString() {
+	    return thread + " (vruntime " + (vruntime >> 10) + ")";
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority = priorityDefault;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime = 0;
+	/** When the thread was last dispatched or charged. */
+	protected long runningSince = 0;
+	/** Whether the thread has ever been dispatched. */
+	protected boolean started = false;
+
+	/** The queue this thread is waiting in, or <tt>null</tt>. */
+	FairQueue queuedOn = null;
+	/** Breaks ties in virtual runtime, in order of creation. */
+	protected final long id;
+    }
+
+    /**
+     * Test that threads are dequeued in order of virtual runtime, which
+     * grows more slowly for threads of higher priority, and that a thread
+     * starting to wait is placed no earlier than the queue's floor allows.
+     */
+    public static void selfTest() {
+	FairScheduler scheduler = new FairScheduler();
+
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	KThread d = new KThread().setName("d");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	// the same time costs b, with more weight, less virtual runtime
+	scheduler.setPriority(b, priorityDefault+3);
+	ThreadState stateA = scheduler.getThreadState(a);
+	ThreadState stateB = scheduler.getThreadState(b);
+	stateA.account(2000);
+	stateB.account(2000);
+	Lib.assertTrue(stateB.vruntime < stateA.vruntime);
+
+	queue.waitForAccess(a);
+	queue.waitForAccess(b);
+	Lib.assertTrue(queue.nextThread() == b);
+	Lib.assertTrue(queue.nextThread() == a);
+
+	// a new thread starts at the floor, a waking one a credit below it
+	ThreadState stateC = scheduler.getThreadState(c);
+	ThreadState stateD = scheduler.getThreadState(d);
+	stateD.started = true;
+
+	queue.waitForAccess(c);
+	queue.waitForAccess(d);
+	Lib.assertTrue(stateC.vruntime == stateA.vruntime);
+	Lib.assertTrue(stateD.vruntime ==
+		       Math.max(0, stateA.vruntime - scheduler.sleeperCredit));
+	Lib.assertTrue(queue.nextThread() == d);
+	Lib.assertTrue(queue.nextThread() == c);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The weight of a thread of each priority: 1024 at the default priority,
+     * and 1.25 times as much for each step up.
+     */
+    private static final int[] weights = {
+	819, 1024, 1280, 1600, 2000, 2500, 3125, 3906
+    };
+
+    /** The virtual runtime a thread is credited when it wakes up. */
+    private long sleeperCredit;
+    /** The thread that is running, or <tt>null</tt> before the first. */
+    protected ThreadState running = null;
+    /** The number of thread states created, to break ties. */
+    private long numThreadStates = 0;
+}
@@ -187,6 +187,7 @@ public class KThread {
     Machine.interrupt().disable();
 
     Machine.autoGrader().finishingCurrentThread();
+    ThreadedKernel.scheduler.finishingCurrentThread();
 
     Lib.assertTrue(toBeDestroyed == null);
     toBeDestroyed = currentThread;
@@ -267,12 +268,27 @@ public class KThread {
     Lib.assertTrue(status != statusReady);
     
     status = statusReady;
-    if (this != idleThread)
+    if (this != idleThread) {
         readyQueue.waitForAccess(this);
+        numReadyThreads++;
+
+        if (this != currentThread && ThreadedKernel.alarm != null)
+            ThreadedKernel.alarm.threadReady();
+    }
     
     Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Return the number of threads waiting in the ready queue, not counting
+     * the current thread or the idle thread.
+     *
+     * @return  the number of threads ready to run.
+     */
+    static int numReadyThreads() {
+    return numReadyThreads;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -290,6 +306,8 @@ public class KThread {
     if(this.status == statusFinished) return;
     if (this.waitingQueue == null){
         this.waitingQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+        // so that joining threads donate priority to this one
+        this.waitingQueue.acquire(this);
     }
 
     this.waitingQueue.waitForAccess(currentThread);
@@ -306,6 +324,9 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     * When the idle thread yields and nothing else is ready, the simulated
+     * time skips ahead to the next pending interrupt (see
+     * <tt>Interrupt.idle()</tt>).
      */
     private static void createIdleThread() {
     Lib.assertTrue(idleThread == null);
@@ -326,8 +347,16 @@ public class KThread {
      */
     private static void runNextThread() {
     KThread nextThread = readyQueue.nextThread();
-    if (nextThread == null)
+    if (nextThread != null) {
+        numReadyThreads--;
+    }
+    else {
+        // nothing can become ready until the next interrupt comes due
+        if (currentThread == idleThread)
+            Machine.interrupt().idle();
+        
         nextThread = idleThread;
+    }
 
     nextThread.run();
     }
@@ -381,6 +410,7 @@ public class KThread {
     Lib.assertTrue(tcb == TCB.currentTCB());
 
     Machine.autoGrader().runningThread(this);
+    ThreadedKernel.scheduler.runningThread(this);
     
     status = statusRunning;
 
@@ -537,6 +567,12 @@ public class KThread {
     private Runnable target;
     private TCB tcb;
 
+    /**
+     * The alarm timeout of this thread while it sleeps in the alarm, or
+     * <tt>null</tt>.
+     */
+    Alarm.Timeout timeout = null;
+
     protected Lock joinLock = new Lock();
     protected Condition2 joinCondition = new Condition2(joinLock);
 
@@ -553,6 +589,7 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    private static int numReadyThreads = 0;
 
     public static KThread tres = null; 
     public static KThread uno = null; 
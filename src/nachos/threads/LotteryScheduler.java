@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -32,7 +28,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +38,512 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).getTickets();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long tickets = getLotteryState(thread).getEffectiveTickets();
+	return (int) Math.min(tickets, Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
     }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Each waiting thread occupies a slot, and the effective tickets of the
+     * slots are kept in a Fenwick tree, so that both drawing the winner and
+     * changing a waiter's tickets take time logarithmic in the number of
+     * slots.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the current holder gives up this queue, and its tickets with it
+	    if (holder != null)
+		holder.release(this);
+
+	    LotteryState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	public boolean cancel(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    if (state.queuedOn != this)
+		return false;
+
+	    remove(state);
+
+	    // the holder loses the tickets the thread was donating
+	    if (transferPriority && holder != null)
+		holder.adjustEffectiveTickets(-state.effectiveTickets);
+
+	    return true;
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads and return the winner,
+	 * without removing it from this queue.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if none are waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long ticket;
+	    if (totalTickets <= Integer.MAX_VALUE)
+		ticket = Lib.random((int) totalTickets);
+	    else
+		ticket = (long) (Lib.random() * totalTickets);
+
+	    return slots[findSlot(ticket)];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=1; i<=highestSlot; i++) {
+		if (slots[i] != null)
+		    System.out.print(slots[i] + " ");
+	    }
+	    System.out.println("(" + totalTickets + " tickets)");
+	}
+
+	/**
+	 * Return the number of tickets this queue donates to its holder: the
+	 * sum of the effective tickets of its waiting threads, or 0 if it does
+	 * not transfer priority.
+	 *
+	 * @return	the number of tickets donated to the holder of this queue.
+	 */
+	protected long getDonation() {
+	    return transferPriority ? totalTickets : 0;
+	}
+
+	/**
+	 * Give a waiting thread a slot and enter its tickets in the lottery.
+	 *
+	 * @param	state	the thread to add.
+	 */
+	protected void add(LotteryState state) {
+	    Lib.assertTrue(state.queuedOn == null);
+
+	    int slot;
+	    if (numFreeSlots > 0) {
+		slot = freeSlots[--numFreeSlots];
+	    }
+	    else {
+		if (highestSlot == capacity)
+		    grow();
+		slot = ++highestSlot;
+	    }
+
+	    slots[slot] = state;
+	    state.queuedOn = this;
+	    state.slot = slot;
+	    size++;
+
+	    update(slot, state.effectiveTickets);
+	}
+
+	/**
+	 * Withdraw a waiting thread from the lottery and free its slot.
+	 *
+	 * @param	state	the thread to remove.
+	 */
+	protected void remove(LotteryState state) {
+	    Lib.assertTrue(state.queuedOn == this);
+
+	    int slot = state.slot;
+	    update(slot, -state.effectiveTickets);
+
+	    slots[slot] = null;
+	    freeSlots[numFreeSlots++] = slot;
+	    state.queuedOn = null;
+	    size--;
+	}
+
+	/**
+	 * Add <i>delta</i> tickets to the specified slot.
+	 */
+	protected void update(int slot, long delta) {
+	    totalTickets += delta;
+
+	    for (int i=slot; i<=capacity; i += i & -i)
+		tree[i] += delta;
+	}
+
+	/**
+	 * Return the slot holding the specified ticket, where the tickets are
+	 * numbered consecutively from 0 in slot order. This is the lowest slot
+	 * whose prefix sum exceeds <i>ticket</i>.
+	 */
+	protected int findSlot(long ticket) {
+	    Lib.assertTrue(ticket >= 0 && ticket < totalTickets);
+
+	    int slot = 0;
+	    for (int step = Integer.highestOneBit(capacity); step > 0;
+		 step >>= 1) {
+		if (slot+step <= capacity && tree[slot+step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
+		}
+	    }
+
+	    return slot+1;
+	}
+
+	/**
+	 * Double the number of slots, rebuilding the tree in linear time. The
+	 * arrays are only allocated once the first thread waits.
+	 */
+	private void grow() {
+	    int newCapacity = Math.max(capacity * 2, 8);
+
+	    LotteryState[] newSlots = new LotteryState[newCapacity+1];
+	    int[] newFreeSlots = new int[newCapacity];
+	    if (capacity > 0) {
+		System.arraycopy(slots, 0, newSlots, 0, capacity+1);
+		System.arraycopy(freeSlots, 0, newFreeSlots, 0, numFreeSlots);
+	    }
+
+	    long[] newTree = new long[newCapacity+1];
+	    for (int i=1; i<=newCapacity; i++) {
+		if (newSlots[i] != null)
+		    newTree[i] += newSlots[i].effectiveTickets;
+
+		int parent = i + (i & -i);
+		if (parent <= newCapacity)
+		    newTree[parent] += newTree[i];
+	    }
+
+	    slots = newSlots;
+	    freeSlots = newFreeSlots;
+	    tree = newTree;
+	    capacity = newCapacity;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+	/** The thread that last acquired this queue, or <tt>null</tt>. */
+	protected LotteryState holder = null;
+
+	/** The number of slots; zero or a power of two. */
+	private int capacity = 0;
+	/** The waiting thread in each slot, indexed from 1. */
+	private LotteryState[] slots = null;
+	/** The Fenwick tree of effective tickets, indexed from 1. */
+	private long[] tree = null;
+	/** Slots below <tt>highestSlot</tt> that have been freed. */
+	private int[] freeSlots = null;
+	private int numFreeSlots = 0;
+	/** The highest slot that has ever been used. */
+	private int highestSlot = 0;
+	/** The number of waiting threads. */
+	protected int size = 0;
+	/** The sum of the effective tickets of the waiting threads. */
+	protected long totalTickets = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a lottery scheduler: its
+     * tickets, its effective tickets, and the queue it waits in, if any.
+     *
+     * <p>
+     * The effective tickets are kept up to date incrementally. Whenever they
+     * change, the difference is added to the thread's slot in the queue it
+     * waits in, and on to the holder of that queue, and so on up the chain.
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+
+	    tickets = priorityDefault;
+	    effectiveTickets = priorityDefault;
+	}
+
+	public String toString() {
+	    return thread.getName() + " - tickets " + tickets +
+		" - eTickets " + effectiveTickets;
+	}
+
+	/**
+	 * Return the number of tickets of the associated thread.
+	 *
+	 * @return	the number of tickets of the associated thread.
+	 */
+	public int getTickets() {
+	    return tickets;
+	}
+
+	/**
+	 * Return the effective number of tickets of the associated thread.
+	 *
+	 * @return	the effective number of tickets of the associated thread.
+	 */
+	public long getEffectiveTickets() {
+	    return effectiveTickets;
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+
+	    adjustEffectiveTickets(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting for access to
+	 * whatever is guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 *
+	 * @see	nachos.threads.ThreadQueue#waitForAccess
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    // waiting again for something we hold means giving it up
+	    if (waitQueue.holder == this)
+		release(waitQueue);
+
+	    waitQueue.add(this);
+
+	    if (waitQueue.transferPriority && waitQueue.holder != null)
+		waitQueue.holder.adjustEffectiveTickets(effectiveTickets);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquire
+	 * @see	nachos.threads.ThreadQueue#nextThread
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    // the old holder must give back our tickets too
+	    if (waitQueue.holder != null)
+		waitQueue.holder.release(waitQueue);
+
+	    if (queuedOn == waitQueue)
+		waitQueue.remove(this);
+
+	    waitQueue.holder = this;
+	    adjustEffectiveTickets(waitQueue.getDonation());
+	}
+
+	/**
+	 * Called when the associated thread gives up the specified queue,
+	 * along with the tickets its waiters were donating.
+	 *
+	 * @param	waitQueue	the queue the associated thread held.
+	 */
+	protected void release(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.holder == this);
+	    waitQueue.holder = null;
+
+	    adjustEffectiveTickets(-waitQueue.getDonation());
+	}
+
+	/**
+	 * Add <i>delta</i> to the effective tickets of the associated thread
+	 * and pass the change on to every thread it is waiting for,
+	 * transitively. A thread already visited in this pass is not adjusted
+	 * twice, so the walk ends even if the waits form a cycle.
+	 *
+	 * @param	delta	the change in effective tickets.
+	 */
+	protected void adjustEffectiveTickets(long delta) {
+	    if (delta == 0)
+		return;
+
+	    int pass = ++numAdjustments;
+
+	    LotteryState state = this;
+	    while (state != null && state.lastAdjustment != pass) {
+		state.lastAdjustment = pass;
+		state.effectiveTickets += delta;
+
+		LotteryQueue waitQueue = state.queuedOn;
+		if (waitQueue == null)
+		    break;
+
+		waitQueue.update(state.slot, delta);
+		state = waitQueue.transferPriority ? waitQueue.holder : null;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The number of tickets of the associated thread. */
+	protected int tickets;
+	/** Its tickets plus all the tickets donated to it. */
+	protected long effectiveTickets;
+
+	/** The queue this thread is waiting in, or <tt>null</tt>. */
+	protected LotteryQueue queuedOn = null;
+	/** The slot this thread occupies in <tt>queuedOn</tt>. */
+	protected int slot;
+	/** The last pass of <tt>adjustEffectiveTickets()</tt> to visit. */
+	protected int lastAdjustment = 0;
+    }
+
+    /**
+     * Test that tickets are drawn in proportion, and that waiters donate
+     * their tickets to the holder of a queue until they stop waiting.
+     */
+    public static void selfTest() {
+	LotteryScheduler scheduler = new LotteryScheduler();
+
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread holder = new KThread().setName("holder");
+	KThread waiter = new KThread().setName("waiter");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// b holds 3 of every 4 tickets
+	scheduler.setPriority(b, 3);
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	queue.waitForAccess(a);
+	queue.waitForAccess(b);
+
+	int wins = 0;
+	for (int i=0; i<4000; i++) {
+	    KThread winner = queue.nextThread();
+	    if (winner == b)
+		wins++;
+
+	    queue.waitForAccess(winner);
+	}
+
+	// allow five standard deviations
+	Lib.assertTrue(Math.abs(wins - 3000) < 140);
+
+	queue = scheduler.newThreadQueue(true);
+	queue.acquire(holder);
+	scheduler.setPriority(waiter, 5);
+
+	queue.waitForAccess(waiter);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 6);
+
+	Lib.assertTrue(queue.cancel(waiter));
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1);
+
+	queue.waitForAccess(waiter);
+	Lib.assertTrue(queue.nextThread() == waiter);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(waiter) == 5);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /** The number of times effective tickets have been adjusted. */
+    private int numAdjustments = 0;
 }
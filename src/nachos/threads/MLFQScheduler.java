@@ -0,0 +1,533 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Every thread is at one of several levels, and a thread at a higher level is
+ * always dequeued before a thread at a lower one; threads at the same level
+ * are dequeued in FIFO order. Threads start at the top level (level 0). Each
+ * level has a quantum, which doubles at every level down, and a thread that
+ * uses a full quantum of processor time at its level moves down one level.
+ * Threads that mostly wait (for the console, the file system, a lock, or the
+ * alarm) never use up their quantum, so they stay near the top and run soon
+ * after they wake, even next to threads that compute without stopping.
+ *
+ * <p>
+ * A thread is charged for the processor time it used whenever the timer
+ * interrupts it and whenever it gives up the processor. Time is charged
+ * across blocking, so a thread cannot stay at a high level by blocking just
+ * before its quantum runs out. A thread the timer preempts before it has used
+ * its quantum goes back to the front of its level, so it keeps running unless
+ * a thread at a higher level is waiting.
+ *
+ * <p>
+ * To keep threads at the bottom level from starving, and to let threads that
+ * become interactive move back up, every thread returns to the top level at
+ * the start of each boost period.
+ *
+ * <p>
+ * Priority is not transferred through locks or joins; the periodic boost
+ * bounds how long a low level thread holding a lock can be held up.
+ *
+ * <p>
+ * The number of levels, the quantum of the top level, and the length of the
+ * boost period, in clock ticks, are read from <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt> and <tt>MLFQScheduler.boostPeriod</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	Lib.assertTrue(numLevels >= 1 && numLevels <= 30);
+
+	quanta = new long[numLevels];
+	quanta[0] = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+	Lib.assertTrue(quanta[0] > 0);
+	for (int i=1; i<numLevels; i++)
+	    quanta[i] = quanta[i-1] * 2;
+
+	boostPeriod = Config.getInteger("MLFQScheduler.boostPeriod",
+					20*Stats.TimerTicks);
+	Lib.assertTrue(boostPeriod > 0);
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param	transferPriority	ignored. Priority is never transferred.
+     * @return	a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue();
+    }
+
+    /**
+     * Return the priority of the specified thread: <tt>0</tt> at the bottom
+     * level, up to one less than the number of levels at the top level.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return numLevels-1 - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Move the specified thread to the level with the specified priority,
+     * with a fresh quantum. The thread stays there until it uses up its
+     * quantum or the next boost. Priorities above that of the top level put
+     * the thread at the top level.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum);
+	priority = Math.min(priority, numLevels-1);
+
+	getThreadState(thread).setLevel(numLevels-1 - priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == numLevels-1) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Note when the specified thread was dispatched, so that it is charged
+     * only for the time it spends running.
+     */
+    public void runningThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	getThreadState(thread).runningSince = Machine.timer().getTime();
+    }
+
+    /**
+     * Charge the current thread for the time it has run. If that uses up its
+     * quantum it moves down a level and goes to the back of its new level
+     * when it yields; otherwise it goes to the front of its level.
+     */
+    public void timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(KThread.currentThread());
+
+	if (!state.charge())
+	    preempted = state;
+    }
+
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 0;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the number of the current boost period.
+     */
+    private long getEpoch() {
+	return Machine.timer().getTime() / boostPeriod;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps a FIFO list of waiting threads for
+     * each level. The lists are linked through the threads' scheduling
+     * states, so a thread is added or removed in constant time.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+	MLFQQueue() {
+	    heads = new ThreadState[numLevels];
+	    tails = new ThreadState[numLevels];
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    // a thread that gives up the processor is charged for its time
+	    if (thread == KThread.currentThread())
+		state.charge();
+
+	    add(state, state == preempted);
+	    if (state == preempted)
+		preempted = null;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.queuedOn == this)
+		remove(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = pickNextThread();
+	    if (state == null)
+		return null;
+
+	    remove(state);
+
+	    return state.thread;
+	}
+
+	public boolean cancel(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.queuedOn != this)
+		return false;
+
+	    remove(state);
+	    return true;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    boost();
+
+	    for (int i=0; i<numLevels; i++) {
+		if (heads[i] != null)
+		    return heads[i];
+	    }
+
+	    return null;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    boost();
+
+	    for (int i=0; i<numLevels; i++) {
+		for (ThreadState state=heads[i]; state!=null; state=state.next)
+		    System.out.print(state.thread + " (level " + i + ") ");
+	    }
+	}
+
+	void add(ThreadState state, boolean atFront) {
+	    Lib.assertTrue(state.queuedOn == null);
+
+	    boost();
+
+	    int level = state.getLevel();
+	    state.queuedOn = this;
+	    state.queuedLevel = level;
+
+	    if (atFront) {
+		state.prev = null;
+		state.next = heads[level];
+		if (heads[level] != null)
+		    heads[level].prev = state;
+		else
+		    tails[level] = state;
+		heads[level] = state;
+	    }
+	    else {
+		state.next = null;
+		state.prev = tails[level];
+		if (tails[level] != null)
+		    tails[level].next = state;
+		else
+		    heads[level] = state;
+		tails[level] = state;
+	    }
+	}
+
+	void remove(ThreadState state) {
+	    Lib.assertTrue(state.queuedOn == this);
+
+	    boost();
+
+	    int level = state.queuedLevel;
+
+	    if (state.prev != null)
+		state.prev.next = state.next;
+	    else
+		heads[level] = state.next;
+
+	    if (state.next != null)
+		state.next.prev = state.prev;
+	    else
+		tails[level] = state.prev;
+
+	    state.prev = state.next = null;
+	    state.queuedOn = null;
+	}
+
+	/**
+	 * If a new boost period has started since this queue was last used,
+	 * move every waiting thread to the top level, keeping them in the
+	 * order they would have been dequeued.
+	 */
+	private void boost() {
+	    long currentEpoch = getEpoch();
+	    if (epoch == currentEpoch)
+		return;
+
+	    epoch = currentEpoch;
+
+	    for (int i=1; i<numLevels; i++) {
+		if (heads[i] == null)
+		    continue;
+
+		for (ThreadState state=heads[i]; state!=null; state=state.next)
+		    state.queuedLevel = 0;
+
+		// append the whole level to the top level
+		if (tails[0] != null) {
+		    tails[0].next = heads[i];
+		    heads[i].prev = tails[0];
+		}
+		else {
+		    heads[0] = heads[i];
+		}
+		tails[0] = tails[i];
+
+		heads[i] = tails[i] = null;
+	    }
+	}
+
+	/** The first waiting thread at each level, or <tt>null</tt>. */
+	private ThreadState[] heads;
+	/** The last waiting thread at each level, or <tt>null</tt>. */
+	private ThreadState[] tails;
+	/** The boost period in which this queue was last used. */
+	private long epoch = 0;
+    }
+
+    /**
+     * The scheduling state of a thread. This keeps track of the thread's
+     * level, and of how much of its quantum it has used.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.epoch = getEpoch();
+	    this.runningSince = Machine.timer().getTime();
+	}
+
+	/**
+	 * Return the level of the associated thread, moving it to the top
+	 * level if a new boost period has started.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	public int getLevel() {
+	    long currentEpoch = getEpoch();
+	    if (epoch != currentEpoch) {
+		epoch = currentEpoch;
+		level = 0;
+		used = 0;
+	    }
+
+	    return level;
+	}
+
+	/**
+	 * Move the associated thread to the specified level, with a fresh
+	 * quantum.
+	 *
+	 * @param	level	the new level.
+	 */
+	public void setLevel(int level) {
+	    getLevel();
+
+	    this.level = level;
+	    used = 0;
+
+	    // move it within the queue it is waiting in
+	    if (queuedOn != null) {
+		MLFQQueue queue = queuedOn;
+		queue.remove(this);
+		queue.add(this, false);
+	    }
+	}
+
+	/**
+	 * Charge the associated thread, which must be the current thread, for
+	 * the time it has run since it was last charged, and move it down a
+	 * level if that uses up its quantum.
+	 *
+	 * @return	<tt>true</tt> if the thread used up its quantum.
+	 */
+	boolean charge() {
+	    long time = Machine.timer().getTime();
+
+	    getLevel();
+	    used += time - runningSince;
+	    runningSince = time;
+
+	    if (used < quanta[level])
+		return false;
+
+	    if (level < numLevels-1)
+		level++;
+	    used = 0;
+
+	    Lib.debug(dbgMLFQ, "Demoting " + thread + " to level " + level);
+
+	    return true;
+	}
+
+	public String toString() {
+	    return thread + " (level " + level + ", used " + used + ")";
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread. */
+	protected int level = 0;
+	/** The processor time the thread has used at its current level. */
+	protected long used = 0;
+	/** When the thread was last dispatched or charged. */
+	protected long runningSince;
+	/** The boost period in which <tt>level</tt> was last checked. */
+	protected long epoch;
+
+	/** The queue this thread is waiting in, or <tt>null</tt>. */
+	MLFQQueue queuedOn = null;
+	/** The level of the list this thread is waiting in. */
+	int queuedLevel;
+	/** The threads before and after this one in that list. */
+	ThreadState prev = null, next = null;
+    }
+
+    /**
+     * Test that a thread that uses up its quantum moves down a level and
+     * waits behind threads above it, that it stays there until the end of
+     * the boost period, and that the boost then brings it back to the top
+     * level.
+     */
+    public static void selfTest() {
+	MLFQScheduler scheduler = new MLFQScheduler();
+	long period = scheduler.boostPeriod;
+	int demoted = Math.min(1, scheduler.numLevels-1);
+
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+
+	// start early in a boost period
+	ThreadedKernel.alarm.waitUntil(period - Machine.timer().getTime()%period);
+	long boostTime = (scheduler.getEpoch()+1) * period;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	// pretend a has just run for a full quantum
+	ThreadState state = scheduler.getThreadState(a);
+	state.runningSince -= scheduler.quanta[0];
+	Lib.assertTrue(state.charge());
+	Lib.assertTrue(state.getLevel() == demoted);
+
+	queue.waitForAccess(a);
+	queue.waitForAccess(b);
+	if (scheduler.numLevels > 1) {
+	    Lib.assertTrue(queue.nextThread() == b);
+	    queue.waitForAccess(b);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	// a timer interrupt is at most a little over TimerTicks late
+	long beforeBoost = boostTime - 2*Stats.TimerTicks;
+	if (beforeBoost > Machine.timer().getTime()) {
+	    ThreadedKernel.alarm.waitUntil(beforeBoost -
+					   Machine.timer().getTime());
+	    Lib.assertTrue(Machine.timer().getTime() < boostTime);
+	    Lib.assertTrue(state.getLevel() == demoted);
+	}
+
+	ThreadedKernel.alarm.waitUntil(boostTime - Machine.timer().getTime());
+
+	intStatus = Machine.interrupt().disable();
+
+	// both are at the top level now, in the order they would have run
+	Lib.assertTrue(state.getLevel() == 0);
+	Lib.assertTrue(queue.nextThread() == b);
+	Lib.assertTrue(queue.nextThread() == a);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /** The number of levels. */
+    private int numLevels;
+    /** The quantum of each level, in clock ticks. */
+    private long[] quanta;
+    /** The length of a boost period, in clock ticks. */
+    private long boostPeriod;
+
+    /**
+     * The thread the timer is preempting before it has used its quantum, so
+     * that it goes to the front of its level when it yields.
+     */
+    private ThreadState preempted = null;
+
+    private static final char dbgMLFQ = 'q';
+}
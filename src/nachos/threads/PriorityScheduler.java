@@ -3,14 +3,6 @@ package nachos.threads;
 import nachos.machine.*;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedHashSet;
-import java.util.Random;
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.UUID;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -123,97 +115,193 @@ public class PriorityScheduler extends Scheduler {
      * @return	the scheduling state of the specified thread.
      */
     protected ThreadState getThreadState(KThread thread) {
-		if (thread.schedulingState == null)
-		    thread.schedulingState = new ThreadState(thread);
-		
-		return (ThreadState) thread.schedulingState;
-	    }
-	
-	    /**
-	     * A <tt>ThreadQueue</tt> that sorts threads by priority.
-	     */
-	    protected class PriorityQueue extends ThreadQueue {
-		PriorityQueue(boolean transferPriority) {
-		    this.transferPriority = transferPriority;
-		}
-	
-		public void waitForAccess(KThread thread) {
-		    Lib.assertTrue(Machine.interrupt().disabled());
-		    getThreadState(thread).waitForAccess(this);
-		}
-	
-		public void acquire(KThread thread) {
-		    Lib.assertTrue(Machine.interrupt().disabled());
-		    getThreadState(thread).acquire(this);
-		}
-	
-		public KThread nextThread() {
-		    Lib.assertTrue(Machine.interrupt().disabled());
-		    //primero saco el thread anterior y todos sus problemas
-		    if (lockingThread != null){
-		    	if (transferPriority){//si esta permitido transferir prioridad aqui
-		    		getThreadState(lockingThread).removeEffectivePriority(index_lockingThread);
-		    		index_lockingThread = -1;
-		    	}
-		    }
-		    if (waitQueue.isEmpty()) return null;
-		    acquire(waitQueue.poll().thread);
-			return lockingThread;
-		}
-	
-		/**
-		 * Return the next thread that <tt>nextThread()</tt> would return,
-		 * without modifying the state of this queue.
-		 *
-		 * @return	the next thread that <tt>nextThread()</tt> would
-		 *		return.
-		 */
-		protected ThreadState pickNextThread() {
-		    return waitQueue.peek();
-		}
-		
-		public void print() {
-		    Lib.assertTrue(Machine.interrupt().disabled());
-		    // implement me (if you want)
-		}
-		
-		public KThread getLockingThread(){
-			return lockingThread;
-		}
-	
-		/**
-		 * <tt>true</tt> if this queue should transfer priority from waiting
-		 * threads to the owning thread.
-		 */
-		public boolean transferPriority;
-		//priority queue de java de tipo thread state en el cual se ordenan los thread a su ingreso
-		protected java.util.PriorityQueue<ThreadState> waitQueue = new java.util.PriorityQueue<ThreadState>(8,new MyComparator());
-		protected KThread lockingThread = null;
-		protected int index_lockingThread = -1;
-	    }
-	    
-    protected class MyComparator implements Comparator<ThreadState> {
-		
-		@Override
-		public int compare(ThreadState ts1, ThreadState ts2) {
-			//prioridad efectiva
-			int diff = ts1.getEffectivePriority() - ts2.getEffectivePriority();
-			if (diff != 0 ) return -1 * diff;//el que tiene mayor prioridad va primero
-			
-			//si tienen misma prioridad, se retorna el de mayor tiempo en cola
-			return Long.signum(ts1.getInitTime()-ts2.getInitTime());			
-		}
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     */
+    protected class PriorityQueue extends ThreadQueue {
+	PriorityQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the current holder gives up this queue, and any donation with it
+	    if (holder != null)
+		holder.release(this);
+
+	    ThreadState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	public boolean cancel(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.queuedOn != this)
+		return false;
+
+	    remove(state);
+
+	    // the holder loses whatever the thread was donating
+	    if (transferPriority && holder != null)
+		holder.updateEffectivePriority();
+
+	    return true;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (nonEmptyLevels == 0)
+		return null;
+
+	    return heads[31 - Integer.numberOfLeadingZeros(nonEmptyLevels)];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    // implement me (if you want)
+	}
+
+	public KThread getLockingThread() {
+	    return (holder == null) ? null : holder.thread;
+	}
+
+	/**
+	 * Return the priority this queue donates to its holder: the highest
+	 * effective priority of any waiting thread, or
+	 * <tt>priorityMinimum</tt> if there is none or this queue does not
+	 * transfer priority.
+	 *
+	 * @return	the priority donated to the holder of this queue.
+	 */
+	protected int getDonation() {
+	    if (!transferPriority || nonEmptyLevels == 0)
+		return priorityMinimum;
+
+	    return 31 - Integer.numberOfLeadingZeros(nonEmptyLevels);
 	}
 
+	/**
+	 * Add a thread to the list for its effective priority, behind every
+	 * thread there that has been waiting longer. New arrivals always go
+	 * straight to the tail; only threads whose effective priority changed
+	 * while waiting have to look further back.
+	 *
+	 * @param	state	the thread to add.
+	 */
+	protected void add(ThreadState state) {
+	    Lib.assertTrue(state.queuedOn == null);
+
+	    int level = state.getEffectivePriority();
+
+	    ThreadState prev = tails[level];
+	    while (prev != null && prev.queuedTime > state.queuedTime)
+		prev = prev.queuePrev;
+
+	    ThreadState next = (prev == null) ? heads[level] : prev.queueNext;
+
+	    state.queuePrev = prev;
+	    state.queueNext = next;
+	    if (prev == null)
+		heads[level] = state;
+	    else
+		prev.queueNext = state;
+	    if (next == null)
+		tails[level] = state;
+	    else
+		next.queuePrev = state;
+
+	    state.queuedOn = this;
+	    state.queuedLevel = level;
+	    nonEmptyLevels |= 1 << level;
+	}
+
+	/**
+	 * Remove a thread waiting in this queue.
+	 *
+	 * @param	state	the thread to remove.
+	 */
+	protected void remove(ThreadState state) {
+	    Lib.assertTrue(state.queuedOn == this);
+
+	    int level = state.queuedLevel;
+
+	    if (state.queuePrev == null)
+		heads[level] = state.queueNext;
+	    else
+		state.queuePrev.queueNext = state.queueNext;
+	    if (state.queueNext == null)
+		tails[level] = state.queuePrev;
+	    else
+		state.queueNext.queuePrev = state.queuePrev;
+
+	    if (heads[level] == null)
+		nonEmptyLevels &= ~(1 << level);
+
+	    state.queuePrev = null;
+	    state.queueNext = null;
+	    state.queuedOn = null;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer priority from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+	/**
+	 * The waiting threads, one FIFO list per priority, linked through the
+	 * <tt>ThreadState</tt>s themselves.
+	 */
+	protected ThreadState[] heads = new ThreadState[priorityMaximum+1];
+	protected ThreadState[] tails = new ThreadState[priorityMaximum+1];
+	/** Bit <i>p</i> is set iff some thread waits with priority <i>p</i>. */
+	protected int nonEmptyLevels = 0;
+	/** The thread that last acquired this queue, or <tt>null</tt>. */
+	protected ThreadState holder = null;
+    }
+
     /**
      * The scheduling state of a thread. This should include the thread's
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The effective priority is cached, and recomputed only when something
+     * it depends on changes: the thread's own priority, or the highest
+     * waiter of a queue it holds. A change is passed on to the holder of the
+     * queue the thread waits in, so donation follows chains of locks and
+     * joins.
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
     protected class ThreadState {
-    	
 	/**
 	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 	 * specified thread.
@@ -222,15 +310,16 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public ThreadState(KThread thread) {
 	    this.thread = thread;
-	    this.init_time= Machine.timer().getTime();
-	    setPriority(priorityDefault);
-	    this.uniqueID = (new Random().nextFloat())+"";
+
+	    priority = priorityDefault;
+	    effectivePriority = priorityDefault;
 	}
-	
-	public String toString(){
-		return uniqueID+" - "+thread.getName()+" - priority "+priority+" - ePriority "+this.getEffectivePriority();
+
+	public String toString() {
+	    return thread.getName() + " - priority " + priority +
+		" - ePriority " + effectivePriority;
 	}
-	
+
 	/**
 	 * Return the priority of the associated thread.
 	 *
@@ -246,16 +335,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-		return Collections.max(effectivePriority).intValue();
-	}
-	
-	public void removeEffectivePriority(int index){
-		this.effectivePriority.remove(index);
-	}
-	
-	public void setEffectivePriority(int effectivePriority, int index){
-		if (this.effectivePriority.get(index).intValue() < effectivePriority)
-			this.effectivePriority.set(index, effectivePriority);
+	    return effectivePriority;
 	}
 
 	/**
@@ -264,35 +344,12 @@ public class PriorityScheduler extends Scheduler {
 	 * @param	priority	the new priority.
 	 */
 	public void setPriority(int priority) {
-	    //if (this.priority == priority)
+	    if (this.priority == priority)
+		return;
 
-	    
 	    this.priority = priority;
-	    
-	    if (effectivePriority.size() > 0)
-	    	effectivePriority.set(0, priority);
-	    else
-	    	effectivePriority.add(priority);
-	    
-	    for (PriorityQueue pq: this.waitingQueues){
-	    	if (pq.transferPriority){
-	    		if(pq.lockingThread != null){
-	    			getThreadState(pq.lockingThread).setEffectivePriority(getEffectivePriority(), pq.index_lockingThread);
-	    		}
-	    	}
-	    }
-	    
-	}
-	
-	public boolean equals(Object o){
-		return ((ThreadState) o).uniqueID.equals(this.uniqueID);
+	    updateEffectivePriority();
 	}
-	
-	public int hashCode(){
-		return Integer.valueOf(uniqueID.substring(1));
-	}
-	
-	
 
 	/**
 	 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
@@ -307,21 +364,15 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-		if (waitQueue.lockingThread != null)
-			if (waitQueue.lockingThread.equals(this.thread)){
-				if (waitQueue.transferPriority)
-					getThreadState(waitQueue.lockingThread).removeEffectivePriority(waitQueue.index_lockingThread);
-				
-				waitQueue.lockingThread = null;
-				waitQueue.index_lockingThread = -1;
-				
-			}
-		waitQueue.waitQueue.offer(this);
-		this.waitingQueues.add(waitQueue);
-	    
-		if (waitQueue.transferPriority)
-	    	if (waitQueue.lockingThread != null)
-	    		getThreadState(waitQueue.lockingThread).setEffectivePriority(this.getEffectivePriority(), waitQueue.index_lockingThread); 
+	    // waiting again for something we hold means giving it up
+	    if (waitQueue.holder == this)
+		release(waitQueue);
+
+	    queuedTime = numQueued++;
+	    waitQueue.add(this);
+
+	    if (waitQueue.transferPriority && waitQueue.holder != null)
+		waitQueue.holder.updateEffectivePriority();
 	}
 
 	/**
@@ -335,37 +386,80 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-		/*if (waitQueue.lockingThread != null){
-	    	if (waitQueue.transferPriority){//si esta permitido transferir prioridad aqui
-	    		getThreadState(waitQueue.lockingThread).removeEffectivePriority(waitQueue.index_lockingThread);
-	    		waitQueue.index_lockingThread = -1;
-	    	}
-	    }*/
-		waitQueue.lockingThread = null;
-		waitQueue.waitQueue.remove(this);
-		this.waitingQueues.remove(waitQueue);
-		waitQueue.lockingThread = this.thread;
-		if (waitQueue.transferPriority){//si se puede priority inversion
-			this.effectivePriority.add(getEffectivePriority());
-			waitQueue.index_lockingThread = this.effectivePriority.size()-1;
-		}
-	}	
-	
-	public long getInitTime(){
-		return init_time;
+	    if (queuedOn == waitQueue)
+		waitQueue.remove(this);
+
+	    if (waitQueue.holder != null)
+		waitQueue.holder.release(waitQueue);
+
+	    waitQueue.holder = this;
+
+	    if (waitQueue.transferPriority) {
+		ownedQueues.add(waitQueue);
+		updateEffectivePriority();
+	    }
 	}
-	
-	public void setInitTime(long time){
-		this.init_time = time;
+
+	/**
+	 * Called when the associated thread gives up the specified queue,
+	 * along with whatever its waiters were donating.
+	 *
+	 * @param	waitQueue	the queue the associated thread held.
+	 */
+	protected void release(PriorityQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.holder == this);
+	    waitQueue.holder = null;
+
+	    if (ownedQueues.remove(waitQueue))
+		updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority of the associated thread. If it
+	 * changed, move the thread to its new place in the queue it is waiting
+	 * in, and pass the change on to the holder of that queue.
+	 */
+	protected void updateEffectivePriority() {
+	    int newPriority = priority;
+	    for (int i=0; i<ownedQueues.size(); i++)
+		newPriority = Math.max(newPriority,
+				       ownedQueues.get(i).getDonation());
+
+	    if (newPriority == effectivePriority)
+		return;
+
+	    effectivePriority = newPriority;
+
+	    if (queuedOn != null) {
+		PriorityQueue waitQueue = queuedOn;
+		waitQueue.remove(this);
+		waitQueue.add(this);
+
+		if (waitQueue.transferPriority && waitQueue.holder != null)
+		    waitQueue.holder.updateEffectivePriority();
+	    }
 	}
 
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
-	protected ArrayList<Integer> effectivePriority = new ArrayList<Integer>();
-	protected long init_time;
-	protected String uniqueID = null;
-	protected LinkedHashSet<PriorityQueue> waitingQueues = new LinkedHashSet<PriorityQueue>(); 
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+	/** The priority-transferring queues the associated thread holds. */
+	protected ArrayList<PriorityQueue> ownedQueues =
+	    new ArrayList<PriorityQueue>();
+
+	/** The queue this thread is waiting in, or <tt>null</tt>. */
+	protected PriorityQueue queuedOn = null;
+	/** The priority list this thread is in, within <tt>queuedOn</tt>. */
+	protected int queuedLevel;
+	/** When this thread started waiting, for FIFO order within a level. */
+	protected long queuedTime;
+	protected ThreadState queuePrev = null;
+	protected ThreadState queueNext = null;
     }
+
+    /** The number of times any thread has started waiting in a queue. */
+    private long numQueued = 0;
 }
@@ -154,4 +154,69 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Make the specified thread a real-time thread, or, if <i>period</i> is
+     * <tt>0</tt>, an ordinary thread again. Must be called with interrupts
+     * disabled.
+     *
+     * <p>
+     * A real-time thread runs as a series of jobs. A job is released when
+     * the thread becomes ready after blocking, at most once every
+     * <i>period</i> clock ticks, and should complete, by blocking again,
+     * within <i>deadline</i> ticks of its release, using at most <i>cost</i>
+     * ticks of processor time.
+     *
+     * @param	thread		the thread to set the timing of.
+     * @param	period		the minimum time between job releases.
+     * @param	deadline	the time after its release by which each job
+     *				should complete.
+     * @param	cost		the processor time each job needs.
+     * @return	<tt>true</tt> if the scheduler can meet the thread's
+     *		deadlines, in addition to those of the real-time threads it
+     *		already has. Schedulers without real-time support return
+     *		<tt>false</tt>.
+     */
+    public boolean setRealTime(KThread thread, long period, long deadline,
+			       long cost) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return false;
+    }
+
+    /**
+     * Called with interrupts disabled each time a thread starts running on
+     * the processor, including the first thread. A scheduler that accounts
+     * for the processor time each thread uses can charge the thread that was
+     * running until now, and note when the new thread started.
+     *
+     * @param	thread	the thread that now has the processor.
+     */
+    public void runningThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Called with interrupts disabled when the current thread is about to
+     * finish, so that the scheduler can give back anything reserved for it.
+     */
+    public void finishingCurrentThread() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Print statistics about the scheduling done so far. Called when the
+     * kernel terminates. By default, nothing is printed.
+     */
+    public void printStats() {
+    }
+
+    /**
+     * Called by the timer interrupt handler, with interrupts disabled, just
+     * before it forces the current thread to yield. A scheduler that accounts
+     * for the processor time each thread uses can charge the current thread
+     * here, and decide where it should go when it yields.
+     */
+    public void timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
 }
@@ -48,6 +48,35 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait at most <i>timeout</i> clock ticks for this semaphore to
+     * become non-zero, and decrement it if it does.
+     *
+     * @param	timeout	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the time ran out first.
+     */
+    public boolean tryP(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean decremented = true;
+
+	if (value == 0) {
+	    if (timeout > 0) {
+		waitQueue.waitForAccess(KThread.currentThread());
+		decremented = ThreadedKernel.alarm.waitUntil(timeout, waitQueue);
+	    }
+	    else {
+		decremented = false;
+	    }
+	}
+	else {
+	    value--;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -0,0 +1,369 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler gives each thread a number of
+ * tickets, and tickets are transferred (and add up) through locks and joins.
+ * Instead of holding a lottery, each thread has a <i>pass</i>, and the thread
+ * with the lowest pass is always dequeued next. A thread's pass advances by
+ * its <i>stride</i>, which is inversely proportional to its effective
+ * tickets, for every quantum (<tt>Stats.TimerTicks</tt> ticks) of processor
+ * time it uses, and in proportion for part of a quantum. Each thread
+ * therefore gets processor time in proportion to its tickets, a thread that
+ * blocks early pays only for the time it ran, and the schedule is the same
+ * on every run.
+ *
+ * <p>
+ * Being dequeued costs nothing, so waiting for a lock, a semaphore or a join
+ * does not use up a thread's share. A thread that starts waiting in a queue
+ * has its pass raised to the pass of the thread most recently dequeued from
+ * that queue, so that it cannot claim the share it missed while it was
+ * blocked.
+ */
+public class StrideScheduler extends LotteryScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    /**
+     * Charge the thread that was running for the time it used, and start
+     * timing the specified thread.
+     */
+    public void runningThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (running != null)
+	    running.charge();
+
+	running = (StrideState) getLotteryState(thread);
+	running.runningSince = Machine.timer().getTime();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * The stride of a thread with a single ticket.
+     */
+    private static final long strideOne = 1L << 32;
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+     * pass. The waiting threads are kept in a binary min-heap ordered by pass
+     * and then by arrival, and each thread's <tt>slot</tt> is its position in
+     * the heap, so that adding and removing a thread take logarithmic time.
+     */
+    protected class StrideQueue extends LotteryQueue {
+	StrideQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the current thread is charged before its position is decided
+	    StrideState state = (StrideState) getLotteryState(thread);
+	    if (state == running)
+		state.charge();
+
+	    super.waitForAccess(thread);
+	}
+
+	public KThread nextThread() {
+	    KThread thread = super.nextThread();
+
+	    if (thread != null)
+		virtualTime = ((StrideState) getLotteryState(thread)).pass;
+
+	    return thread;
+	}
+
+	/**
+	 * Return the waiting thread with the lowest pass, without removing it
+	 * from this queue.
+	 *
+	 * @return	the next thread to be dequeued, or <tt>null</tt> if none
+	 *		are waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    return (size == 0) ? null : heap[0];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i] + " ");
+	    System.out.println("(" + totalTickets + " tickets)");
+	}
+
+	protected void add(LotteryState lotteryState) {
+	    StrideState state = (StrideState) lotteryState;
+	    Lib.assertTrue(state.queuedOn == null);
+
+	    state.pass = Math.max(state.pass, virtualTime);
+	    state.queuedTime = numQueued++;
+
+	    if (size == heap.length) {
+		StrideState[] newHeap = new StrideState[size*2];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    state.queuedOn = this;
+	    siftUp(state, size++);
+
+	    totalTickets += state.effectiveTickets;
+	}
+
+	protected void remove(LotteryState lotteryState) {
+	    StrideState state = (StrideState) lotteryState;
+	    Lib.assertTrue(state.queuedOn == this);
+
+	    int slot = state.slot;
+	    StrideState last = heap[--size];
+	    heap[size] = null;
+
+	    // put the last entry in the hole, then restore the heap around it
+	    if (last != state) {
+		siftDown(last, slot);
+		if (last.slot == slot)
+		    siftUp(last, slot);
+	    }
+
+	    state.queuedOn = null;
+	    totalTickets -= state.effectiveTickets;
+	}
+
+	/**
+	 * Account for a change in the effective tickets of a waiting thread.
+	 * This changes its stride, but not its pass, so it stays where it is.
+	 */
+	protected void update(int slot, long delta) {
+	    totalTickets += delta;
+	}
+
+	private void siftUp(StrideState state, int slot) {
+	    while (slot > 0) {
+		int parent = (slot-1) / 2;
+		if (!state.before(heap[parent]))
+		    break;
+
+		place(heap[parent], slot);
+		slot = parent;
+	    }
+
+	    place(state, slot);
+	}
+
+	private void siftDown(StrideState state, int slot) {
+	    while (true) {
+		int child = 2*slot + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size && heap[child+1].before(heap[child]))
+		    child++;
+
+		if (!heap[child].before(state))
+		    break;
+
+		place(heap[child], slot);
+		slot = child;
+	    }
+
+	    place(state, slot);
+	}
+
+	private void place(StrideState state, int slot) {
+	    heap[slot] = state;
+	    state.slot = slot;
+	}
+
+	private StrideState[] heap = new StrideState[8];
+	/** The pass of the thread most recently dequeued. */
+	private long virtualTime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a stride scheduler: its lottery
+     * state, plus its pass.
+     */
+    protected class StrideState extends LotteryState {
+	/**
+	 * Allocate a new <tt>StrideState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideState(KThread thread) {
+	    super(thread);
+	}
+
+	public String toString() {
+	    return super.toString() + " - pass " + pass;
+	}
+
+	/**
+	 * Return the amount by which the pass of the associated thread
+	 * advances for each quantum it runs.
+	 *
+	 * @return	the stride of the associated thread.
+	 */
+	public long getStride() {
+	    return Math.max(strideOne / effectiveTickets, 1);
+	}
+
+	/**
+	 * Charge the associated thread for the time it has run since it was
+	 * dispatched or last charged. If the thread is waiting in a queue, it
+	 * moves to its new place.
+	 */
+	void charge() {
+	    long time = Machine.timer().getTime();
+	    long delta = time - runningSince;
+	    runningSince = time;
+
+	    if (delta == 0)
+		return;
+
+	    StrideQueue queue = (StrideQueue) queuedOn;
+	    if (queue != null)
+		queue.remove(this);
+
+	    account(delta);
+
+	    if (queue != null)
+		queue.add(this);
+	}
+
+	/**
+	 * Advance the pass of the associated thread for the specified number
+	 * of clock ticks of processor time, while it is in no queue.
+	 *
+	 * @param	ticks	the number of ticks the thread has run.
+	 */
+	void account(long ticks) {
+	    long quantum = Stats.TimerTicks;
+	    long stride = getStride();
+
+	    pass += ticks/quantum*stride + ticks%quantum*stride/quantum;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this thread should be dequeued before the
+	 * specified thread.
+	 */
+	boolean before(StrideState state) {
+	    return pass < state.pass ||
+		(pass == state.pass && queuedTime < state.queuedTime);
+	}
+
+	/** The virtual time at which the associated thread should next run. */
+	protected long pass = 0;
+	/** When this thread started waiting, to break ties in pass. */
+	protected long queuedTime;
+	/** When the associated thread was dispatched or last charged. */
+	protected long runningSince = 0;
+    }
+
+    /**
+     * Test that threads get processor time in exact proportion to their
+     * tickets however long they run each time they are dequeued, that being
+     * dequeued from a queue costs nothing, and that a thread that starts
+     * waiting late does not make up for the time it missed.
+     */
+    public static void selfTest() {
+	StrideScheduler scheduler = new StrideScheduler();
+
+	KThread[] threads = new KThread[3];
+	for (int i=0; i<3; i++)
+	    threads[i] = new KThread().setName("stride" + i);
+
+	StrideState[] states = new StrideState[3];
+	for (int i=0; i<3; i++)
+	    states[i] = (StrideState) scheduler.getLotteryState(threads[i]);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// with equal tickets, a thread that runs a quarter quantum at a time
+	// is dequeued four times as often as one that runs whole quanta
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	queue.waitForAccess(threads[0]);
+	queue.waitForAccess(threads[1]);
+
+	int shortRuns = 0;
+	for (int i=0; i<1000; i++) {
+	    KThread thread = queue.nextThread();
+	    if (thread == threads[1]) {
+		states[1].account(Stats.TimerTicks/4);
+		shortRuns++;
+	    }
+	    else {
+		states[0].account(Stats.TimerTicks);
+	    }
+
+	    queue.waitForAccess(thread);
+	}
+
+	Lib.assertTrue(Math.abs(shortRuns - 800) <= 1);
+
+	// waiting in and leaving another queue does not advance the pass
+	long pass = states[2].pass;
+	ThreadQueue lockQueue = scheduler.newThreadQueue(false);
+	lockQueue.waitForAccess(threads[2]);
+	Lib.assertTrue(lockQueue.nextThread() == threads[2]);
+	Lib.assertTrue(states[2].pass == pass);
+
+	// the third thread gets a third of the time from now on, no more
+	queue.waitForAccess(threads[2]);
+
+	int lateRuns = 0;
+	for (int i=0; i<30; i++) {
+	    KThread thread = queue.nextThread();
+	    if (thread == threads[2])
+		lateRuns++;
+
+	    ((StrideState) scheduler.getLotteryState(thread))
+		.account(Stats.TimerTicks);
+	    queue.waitForAccess(thread);
+	}
+
+	Lib.assertTrue(Math.abs(lateRuns - 10) <= 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /** The thread that is running, or <tt>null</tt> before the first. */
+    private StrideState running = null;
+    /** The number of times any thread has started waiting in a queue. */
+    private long numQueued = 0;
+}
@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -91,6 +93,26 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that the specified thread has stopped waiting
+     * for access without receiving it, for example because its wait timed
+     * out, and remove it from this queue. If the limited access object
+     * transfers priority, the thread stops donating priority to the thread
+     * that has access.
+     *
+     * <p>
+     * Thread queues that do not override this method do not support timed
+     * waits.
+     *
+     * @param	thread	the thread that has stopped waiting.
+     * @return	<tt>true</tt> if the thread was waiting in this queue, or
+     *		<tt>false</tt> if it has already received access.
+     */
+    public boolean cancel(KThread thread) {
+	Lib.assertNotReached("this thread queue does not support timed waits");
+	return false;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
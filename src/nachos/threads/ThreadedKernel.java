@@ -41,7 +41,8 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+     * <tt>SynchList</tt>, <tt>Alarm</tt>, and <tt>ElevatorBank</tt> classes,
+     * and each of the schedulers, whichever one is in use. Note that the
      * autograder never calls this method, so it is safe to put additional
      * tests here.
      */	
@@ -49,6 +50,12 @@ public class ThreadedKernel extends Kernel {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	Alarm.selfTest();
+	LotteryScheduler.selfTest();
+	StrideScheduler.selfTest();
+	MLFQScheduler.selfTest();
+	FairScheduler.selfTest();
+	DeadlineScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -65,6 +72,8 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	scheduler.printStats();
+
 	Machine.halt();
     }
 
@@ -79,6 +88,10 @@ public class ThreadedKernel extends Kernel {
     private static RoundRobinScheduler dummy1 = null;
     private static PriorityScheduler dummy2 = null;
     private static LotteryScheduler dummy3 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static FairScheduler dummy10 = null;
+    private static DeadlineScheduler dummy11 = null;
     private static Condition2 dummy4 = null;
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
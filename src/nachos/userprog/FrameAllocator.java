@@ -0,0 +1,269 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Allocates frames of physical memory to user processes.
+ *
+ * <p>
+ * Free frames are managed with the buddy system. Memory is divided into
+ * blocks whose size in frames is a power of two (the block's <i>order</i>),
+ * each starting at a multiple of its size, and every free block is on the
+ * free list for its order. Allocating a block splits a larger free block when
+ * there is no free block of the right order, and freeing a frame merges it
+ * with its buddy, the other half of the block it was split from, for as long
+ * as the buddy is free as well, so free memory stays in large runs. A bitmap
+ * records which frames are allocated.
+ *
+ * <p>
+ * The free lists are threaded through arrays indexed by frame number, so
+ * allocating and freeing never allocate objects. A single frame is usually
+ * allocated and freed in constant time; splitting and merging take time
+ * logarithmic in the size of memory.
+ *
+ * <p>
+ * All methods may be called with interrupts enabled or disabled.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator, with every frame free.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public FrameAllocator(int numFrames) {
+	Lib.assertTrue(numFrames >= 0);
+
+	this.numFrames = numFrames;
+
+	maxOrder = 0;
+	while ((2L << maxOrder) <= numFrames)
+	    maxOrder++;
+
+	heads = new int[maxOrder+1];
+	for (int i=0; i<=maxOrder; i++)
+	    heads[i] = -1;
+
+	next = new int[numFrames];
+	prev = new int[numFrames];
+	orders = new byte[numFrames];
+	for (int i=0; i<numFrames; i++)
+	    orders[i] = -1;
+
+	allocated = new long[(numFrames+63) / 64];
+
+	// free memory as the largest aligned blocks that fit
+	for (int frame=0; frame<numFrames; ) {
+	    int order = maxOrder;
+	    if (frame != 0)
+		order = Math.min(order, Integer.numberOfTrailingZeros(frame));
+	    while (frame + (1 << order) > numFrames)
+		order--;
+
+	    insert(frame, order);
+	    frame += 1 << order;
+	}
+
+	numFree = numFrames;
+    }
+
+    /**
+     * Return the number of frames that are free.
+     *
+     * @return	the number of free frames.
+     */
+    public int getNumFreeFrames() {
+	return numFree;
+    }
+
+    /**
+     * Allocate a single frame.
+     *
+     * @return	the frame number, or -1 if no frame is free.
+     */
+    public int allocate() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int frame = allocateBlock(0);
+
+	Machine.interrupt().restore(intStatus);
+	return frame;
+    }
+
+    /**
+     * Free the specified frame, which must be allocated.
+     *
+     * @param	frame	the frame to free.
+     */
+    public void free(int frame) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(frame >= 0 && frame < numFrames && isAllocated(frame));
+
+	allocated[frame >> 6] &= ~(1L << frame);
+	numFree++;
+
+	// merge with the buddy for as long as it is a free block of its own
+	int block = frame, order = 0;
+	while (order < maxOrder) {
+	    int buddy = block ^ (1 << order);
+	    if (buddy + (1 << order) > numFrames || orders[buddy] != order)
+		break;
+
+	    remove(buddy, order);
+	    block = Math.min(block, buddy);
+	    order++;
+	}
+
+	insert(block, order);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the specified frame is allocated.
+     *
+     * @param	frame	the frame to test.
+     * @return	<tt>true</tt> if the frame is allocated.
+     */
+    public boolean isAllocated(int frame) {
+	return (allocated[frame >> 6] & (1L << frame)) != 0;
+    }
+
+    /**
+     * Allocate a block of the specified order, splitting the smallest larger
+     * free block if there is no free block of that order.
+     *
+     * @return	the first frame of the block, or -1 if there is no free block
+     *		of that order or larger.
+     */
+    private int allocateBlock(int order) {
+	int blockOrder = order;
+	while (blockOrder <= maxOrder && heads[blockOrder] == -1)
+	    blockOrder++;
+
+	if (blockOrder > maxOrder)
+	    return -1;
+
+	int block = heads[blockOrder];
+	remove(block, blockOrder);
+
+	// give back the upper half at each split
+	while (blockOrder > order) {
+	    blockOrder--;
+	    insert(block + (1 << blockOrder), blockOrder);
+	}
+
+	for (int i=0; i<(1 << order); i++)
+	    allocated[(block+i) >> 6] |= 1L << (block+i);
+	numFree -= 1 << order;
+
+	return block;
+    }
+
+    /**
+     * Add a free block to the front of the free list for its order.
+     */
+    private void insert(int block, int order) {
+	orders[block] = (byte) order;
+
+	prev[block] = -1;
+	next[block] = heads[order];
+	if (heads[order] != -1)
+	    prev[heads[order]] = block;
+	heads[order] = block;
+    }
+
+    /**
+     * Take a free block off the free list for its order.
+     */
+    private void remove(int block, int order) {
+	Lib.assertTrue(orders[block] == order);
+	orders[block] = -1;
+
+	if (prev[block] == -1)
+	    heads[order] = next[block];
+	else
+	    next[prev[block]] = next[block];
+
+	if (next[block] != -1)
+	    prev[next[block]] = prev[block];
+    }
+
+    /**
+     * Test allocators of several sizes that are not powers of two: allocate
+     * and free frames at random, keeping track of which frames should be
+     * allocated, then free everything and check that the free frames have
+     * merged back into the blocks memory started out as.
+     */
+    public static void selfTest() {
+	int[] sizes = { 1, 37, 100, 129 };
+
+	for (int n=0; n<sizes.length; n++) {
+	    int numFrames = sizes[n];
+	    FrameAllocator allocator = new FrameAllocator(numFrames);
+
+	    boolean[] expected = new boolean[numFrames];
+	    int numAllocated = 0;
+
+	    for (int i=0; i<1000; i++) {
+		if (Lib.random(2) == 0) {
+		    int frame = allocator.allocate();
+
+		    if (numAllocated == numFrames) {
+			Lib.assertTrue(frame == -1);
+			continue;
+		    }
+
+		    Lib.assertTrue(frame >= 0 && frame < numFrames);
+		    Lib.assertTrue(!expected[frame]);
+		    expected[frame] = true;
+		    numAllocated++;
+		}
+		else if (numAllocated > 0) {
+		    int frame;
+		    do {
+			frame = Lib.random(numFrames);
+		    } while (!expected[frame]);
+
+		    allocator.free(frame);
+		    expected[frame] = false;
+		    numAllocated--;
+		}
+
+		Lib.assertTrue(allocator.getNumFreeFrames() ==
+			       numFrames - numAllocated);
+	    }
+
+	    for (int frame=0; frame<numFrames; frame++) {
+		Lib.assertTrue(allocator.isAllocated(frame) == expected[frame]);
+		if (expected[frame])
+		    allocator.free(frame);
+	    }
+
+	    Lib.assertTrue(allocator.getNumFreeFrames() == numFrames);
+
+	    // every buddy has merged back, so the free lists start over
+	    byte[] orders = new FrameAllocator(numFrames).orders;
+	    for (int frame=0; frame<numFrames; frame++)
+		Lib.assertTrue(allocator.orders[frame] == orders[frame]);
+
+	    for (int frame=0; frame<numFrames; frame++)
+		Lib.assertTrue(allocator.allocate() != -1);
+	    Lib.assertTrue(allocator.allocate() == -1);
+	}
+    }
+
+    private int numFrames;
+    private int numFree;
+    /** The order of the largest block. */
+    private int maxOrder;
+
+    /** The first free block of each order, or -1. */
+    private int[] heads;
+    /** The next and previous free blocks of the same order, by block. */
+    private int[] next, prev;
+    /** The order of each free block, by its first frame, or -1. */
+    private byte[] orders;
+    /** One bit per frame, set if the frame is allocated. */
+    private long[] allocated;
+}
@@ -0,0 +1,500 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Gives the pages of user processes frames of physical memory, and takes
+ * frames back from them when there are no free frames left, so that the
+ * processes together can use more memory than the machine has.
+ *
+ * <p>
+ * Victims are chosen from all the frames of all processes with the clock
+ * algorithm. A hand sweeps over the frames in order; a frame whose page has
+ * been used since the hand last passed has its used bit cleared and gets a
+ * second chance, and the first frame whose page has not been used is taken.
+ * A victim page that is dirty is first written to a slot in the swap file,
+ * named by <tt>Pager.swapFile</tt>, and the page is read back from that slot
+ * when it next faults. A clean page is simply dropped, since it can be
+ * loaded again from wherever it came from: its swap slot, its COFF section,
+ * or zeros.
+ *
+ * <p>
+ * The kernel pins a frame while it copies data to or from it, and the pager
+ * pins a frame while it is being filled or written out, so that the hand
+ * passes it by. Page faults are handled one at a time, so a process that
+ * faults on a page that is still being written out waits until the swap slot
+ * holds its contents.
+ *
+ * <p>
+ * The swap file is created the first time a page has to be evicted, so a
+ * workload that fits in physical memory never touches it. Evictions and swap
+ * transfers are counted, along with the pages loaded, and printed by
+ * <tt>printStats()</tt>.
+ */
+public class Pager {
+    /**
+     * Allocate a new pager for the specified number of frames.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public Pager(int numFrames) {
+	this.numFrames = numFrames;
+
+	owners = new UserProcess[numFrames];
+	vpns = new int[numFrames];
+	pinCounts = new int[numFrames];
+
+	swapFileName = Config.getString("Pager.swapFile", "nachos.swp");
+    }
+
+    /**
+     * Make the specified page of the specified process resident, and pin its
+     * frame so that it cannot be evicted until <tt>unpin()</tt> is called.
+     *
+     * @param	process	the process the page belongs to.
+     * @param	vpn	the virtual page.
+     * @return	the frame that holds the page, or -1 if the page could not be
+     *		loaded.
+     */
+    public int pin(UserProcess process, int vpn) {
+	TranslationEntry entry = process.pageTable[vpn];
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// the page can be evicted again whenever interrupts are enabled
+	while (!entry.valid) {
+	    Machine.interrupt().restore(intStatus);
+
+	    if (!pageIn(process, vpn))
+		return -1;
+
+	    intStatus = Machine.interrupt().disable();
+	}
+
+	int ppn = entry.ppn;
+	pinCounts[ppn]++;
+
+	Machine.interrupt().restore(intStatus);
+	return ppn;
+    }
+
+    /**
+     * Unpin the frames holding the specified run of physical memory, which
+     * were pinned by <tt>pin()</tt>.
+     *
+     * @param	paddr	the first byte of the run.
+     * @param	length	the length of the run. The first frame is unpinned even
+     *			if this is 0.
+     */
+    public void unpin(int paddr, int length) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int last = (paddr + Math.max(length, 1) - 1) / Processor.pageSize;
+	for (int ppn=paddr/Processor.pageSize; ppn<=last; ppn++) {
+	    Lib.assertTrue(pinCounts[ppn] > 0);
+	    pinCounts[ppn]--;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Load the specified page of the specified process into a frame, evicting
+     * another page if there is no free frame, and make it valid.
+     *
+     * @param	process	the process the page belongs to.
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page is now valid.
+     */
+    public boolean pageIn(UserProcess process, int vpn) {
+	pagingLock.acquire();
+
+	TranslationEntry entry = process.pageTable[vpn];
+
+	// another thread of the process may have loaded it while we waited
+	if (entry.valid) {
+	    pagingLock.release();
+	    return true;
+	}
+
+	numFaults++;
+
+	int ppn = allocateFrame();
+	if (ppn == -1) {
+	    Lib.debug(dbgPager, "\tno frame for page " + vpn);
+	    pagingLock.release();
+	    return false;
+	}
+
+	int slot = process.swapSlots[vpn];
+	if (slot != -1) {
+	    Lib.debug(dbgPager, "\treading page " + vpn + " from slot " + slot);
+
+	    if (!transfer(slot, ppn, false)) {
+		freeFrame(ppn);
+		pagingLock.release();
+		return false;
+	    }
+	    numSwapReads++;
+	}
+	else {
+	    process.loadPage(vpn, ppn);
+	}
+
+	CoffSection section = process.getSection(vpn);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	entry.ppn = ppn;
+	entry.readOnly = (section != null && section.isReadOnly());
+	// a page just loaded is about to be used
+	entry.used = true;
+	entry.dirty = false;
+	entry.valid = true;
+
+	owners[ppn] = process;
+	vpns[ppn] = vpn;
+	pinCounts[ppn]--;
+
+	Machine.interrupt().restore(intStatus);
+
+	pagingLock.release();
+	return true;
+    }
+
+    /**
+     * Free every frame and swap slot of the specified process, which will
+     * not run again.
+     *
+     * @param	process	the process.
+     */
+    public void release(UserProcess process) {
+	pagingLock.acquire();
+
+	for (int vpn=0; vpn<process.pageTable.length; vpn++) {
+	    TranslationEntry entry = process.pageTable[vpn];
+	    if (entry.valid) {
+		entry.valid = false;
+		owners[entry.ppn] = null;
+		UserKernel.frameAllocator.free(entry.ppn);
+	    }
+
+	    if (process.swapSlots[vpn] != -1) {
+		freeSlot(process.swapSlots[vpn]);
+		process.swapSlots[vpn] = -1;
+	    }
+	}
+
+	pagingLock.release();
+    }
+
+    /**
+     * Close and delete the swap file, if it was created. Every slot goes with
+     * it, so no process may have pages left in the swap file that it will
+     * need again.
+     */
+    public void close() {
+	if (swapFile != null) {
+	    swapFile.close();
+	    swapFile = null;
+	    ThreadedKernel.fileSystem.remove(swapFileName);
+
+	    numSlots = 0;
+	    numFreeSlots = 0;
+	}
+    }
+
+    /**
+     * Print the number of page faults, evictions and swap transfers, and the
+     * fault and eviction rates, if any page has been evicted.
+     */
+    public void printStats() {
+	if (numEvictions == 0)
+	    return;
+
+	long ticks = Math.max(Machine.timer().getTime(), 1);
+	System.out.println("Swap: faults " + numFaults
+			   + ", evictions " + numEvictions
+			   + ", writes " + numSwapWrites
+			   + ", reads " + numSwapReads
+			   + "; per million ticks: faults "
+			   + (numFaults * 1000000L / ticks)
+			   + ", evictions "
+			   + (numEvictions * 1000000L / ticks));
+    }
+
+    /**
+     * Return a frame for a page that is about to be loaded, pinned, taking
+     * one from another page if none is free.
+     *
+     * @return	the frame, or -1 if every frame is pinned.
+     */
+    private int allocateFrame() {
+	int ppn = UserKernel.frameAllocator.allocate();
+	if (ppn == -1)
+	    return evict();
+
+	boolean intStatus = Machine.interrupt().disable();
+	pinCounts[ppn]++;
+	Machine.interrupt().restore(intStatus);
+
+	return ppn;
+    }
+
+    /**
+     * Give a frame that was allocated but never filled back to the frame
+     * allocator.
+     */
+    private void freeFrame(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+	pinCounts[ppn]--;
+	Machine.interrupt().restore(intStatus);
+
+	UserKernel.frameAllocator.free(ppn);
+    }
+
+    /**
+     * Create the swap file, if it has not been created yet.
+     *
+     * @return	<tt>true</tt> if there is a swap file.
+     */
+    private boolean openSwapFile() {
+	if (swapFile == null && ThreadedKernel.fileSystem != null)
+	    swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+
+	return swapFile != null;
+    }
+
+    /**
+     * Choose a victim with the clock algorithm, invalidate its page, and
+     * write the page to the swap file if it is dirty.
+     *
+     * @return	the victim frame, pinned, or -1 if there is none or its page
+     *		could not be written.
+     */
+    private int evict() {
+	openSwapFile();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// the first sweep clears every used bit, so the second finds a victim
+	// unless every frame is pinned
+	int victim = -1;
+	for (int i=0; i<2*numFrames && victim == -1; i++) {
+	    int ppn = hand;
+	    hand = (hand + 1) % numFrames;
+
+	    if (owners[ppn] == null || pinCounts[ppn] > 0)
+		continue;
+
+	    TranslationEntry entry = owners[ppn].pageTable[vpns[ppn]];
+	    if (entry.used) {
+		entry.used = false;
+		continue;
+	    }
+
+	    // without a swap file, only clean pages can be dropped
+	    if (entry.dirty && swapFile == null)
+		continue;
+
+	    victim = ppn;
+	}
+
+	if (victim == -1) {
+	    Machine.interrupt().restore(intStatus);
+	    return -1;
+	}
+
+	UserProcess owner = owners[victim];
+	int vpn = vpns[victim];
+	TranslationEntry entry = owner.pageTable[vpn];
+
+	// the owner faults on the page from now on, and waits for us
+	entry.valid = false;
+	owners[victim] = null;
+	pinCounts[victim]++;
+
+	Machine.interrupt().restore(intStatus);
+
+	if (entry.dirty) {
+	    int slot = owner.swapSlots[vpn];
+	    if (slot == -1)
+		slot = allocateSlot();
+
+	    Lib.debug(dbgPager, "\twriting page " + vpn + " to slot " + slot);
+
+	    if (!transfer(slot, victim, true)) {
+		// keep the page where it is
+		if (owner.swapSlots[vpn] != slot)
+		    freeSlot(slot);
+
+		intStatus = Machine.interrupt().disable();
+		entry.valid = true;
+		owners[victim] = owner;
+		pinCounts[victim]--;
+		Machine.interrupt().restore(intStatus);
+
+		return -1;
+	    }
+
+	    owner.swapSlots[vpn] = slot;
+	    entry.dirty = false;
+	    numSwapWrites++;
+	}
+
+	numEvictions++;
+
+	return victim;
+    }
+
+    /**
+     * Copy a page between the specified swap slot and frame.
+     *
+     * @return	<tt>true</tt> if the whole page was copied.
+     */
+    private boolean transfer(int slot, int ppn, boolean write) {
+	byte[] memory = Machine.processor().getMemory();
+	int pageSize = Processor.pageSize;
+
+	int amount;
+	if (write)
+	    amount = swapFile.write(slot*pageSize, memory, ppn*pageSize,
+				    pageSize);
+	else
+	    amount = swapFile.read(slot*pageSize, memory, ppn*pageSize,
+				   pageSize);
+
+	return amount == pageSize;
+    }
+
+    private int allocateSlot() {
+	if (numFreeSlots > 0)
+	    return freeSlots[--numFreeSlots];
+
+	return numSlots++;
+    }
+
+    private void freeSlot(int slot) {
+	if (numFreeSlots == freeSlots.length) {
+	    int[] newFreeSlots = new int[freeSlots.length*2];
+	    System.arraycopy(freeSlots, 0, newFreeSlots, 0, numFreeSlots);
+	    freeSlots = newFreeSlots;
+	}
+
+	freeSlots[numFreeSlots++] = slot;
+    }
+
+    /**
+     * Test the pager with a process that has more pages than there are
+     * frames, so that pages are evicted, written to the swap file and read
+     * back. Fill every page with its own pattern, read the pages back in
+     * reverse order and then all at once, and check that every frame is
+     * unpinned and every frame and slot is freed afterwards. Nothing is
+     * tested if the swap file cannot be created.
+     */
+    public static void selfTest() {
+	Pager pager = UserKernel.pager;
+
+	boolean swapFileOpen = (pager.swapFile != null);
+	if (!pager.openSwapFile())
+	    return;
+
+	int faults = pager.numFaults;
+	int evictions = pager.numEvictions;
+	int swapWrites = pager.numSwapWrites;
+	int swapReads = pager.numSwapReads;
+	int freeFrames = UserKernel.frameAllocator.getNumFreeFrames();
+
+	// a process with no program, whose pages all start out zeroed
+	UserProcess process = new UserProcess() {
+		protected CoffSection getSection(int vpn) {
+		    return null;
+		}
+	    };
+
+	int pageSize = Processor.pageSize;
+	int numPages = pager.numFrames + 8;
+
+	process.numPages = numPages;
+	process.pageTable = new TranslationEntry[numPages];
+	process.swapSlots = new int[numPages];
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    process.pageTable[vpn] = new TranslationEntry(vpn, -1, false,
+							  false, false, false);
+	    process.swapSlots[vpn] = -1;
+	}
+
+	byte[] data = new byte[numPages*pageSize];
+	for (int i=0; i<data.length; i++)
+	    data[i] = (byte) (i/pageSize*7 + i);
+
+	Lib.assertTrue(process.writeVirtualMemory(0, data) == data.length);
+
+	byte[] page = new byte[pageSize];
+	for (int vpn=numPages-1; vpn>=0; vpn--) {
+	    Lib.assertTrue(process.readVirtualMemory(vpn*pageSize, page) ==
+			   pageSize);
+	    for (int i=0; i<pageSize; i++)
+		Lib.assertTrue(page[i] == data[vpn*pageSize + i]);
+	}
+
+	byte[] copy = new byte[data.length];
+	Lib.assertTrue(process.readVirtualMemory(0, copy) == copy.length);
+	for (int i=0; i<data.length; i++)
+	    Lib.assertTrue(copy[i] == data[i]);
+
+	Lib.assertTrue(pager.numEvictions > evictions);
+	Lib.assertTrue(pager.numSwapWrites > swapWrites);
+	Lib.assertTrue(pager.numSwapReads > swapReads);
+
+	for (int ppn=0; ppn<pager.numFrames; ppn++)
+	    Lib.assertTrue(pager.pinCounts[ppn] == 0);
+
+	pager.release(process);
+
+	Lib.assertTrue(UserKernel.frameAllocator.getNumFreeFrames() ==
+		       freeFrames);
+	Lib.assertTrue(pager.numFreeSlots == pager.numSlots);
+
+	if (!swapFileOpen)
+	    pager.close();
+
+	// the statistics describe only the programs that are run
+	pager.numFaults = faults;
+	pager.numEvictions = evictions;
+	pager.numSwapWrites = swapWrites;
+	pager.numSwapReads = swapReads;
+    }
+
+    private int numFrames;
+    /** The process whose page each frame holds, or <tt>null</tt>. */
+    private UserProcess[] owners;
+    /** The virtual page each frame holds. */
+    private int[] vpns;
+    /** How many times each frame is pinned. */
+    private int[] pinCounts;
+    /** The next frame the clock hand looks at. */
+    private int hand = 0;
+
+    /** Serializes page faults, and with them all swap file transfers. */
+    private Lock pagingLock = new Lock();
+
+    private String swapFileName;
+    private OpenFile swapFile = null;
+    /** The number of slots the swap file has ever held. */
+    private int numSlots = 0;
+    private int[] freeSlots = new int[16];
+    private int numFreeSlots = 0;
+
+    /** The number of pages loaded into a frame. */
+    private int numFaults = 0;
+    /** The number of pages evicted from physical memory. */
+    private int numEvictions = 0;
+    /** The number of pages written to the swap file. */
+    private int numSwapWrites = 0;
+    /** The number of pages read back from the swap file. */
+    private int numSwapReads = 0;
+
+    private static final char dbgPager = 'v';
+}
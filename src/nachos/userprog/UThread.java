@@ -22,13 +22,17 @@ public class UThread extends KThread {
 	    });
 
 	this.process = process;
+
+	// spread user threads over the processors
+	processor = Machine.processor(nextProcessor);
+	nextProcessor = (nextProcessor + 1) % Machine.numProcessors();
     }
 
     private void runProgram() {
 	process.initRegisters();
 	process.restoreState();
 
-	Machine.processor().run();
+	processor.run();
 	
 	Lib.assertNotReached();
     }
@@ -40,7 +44,7 @@ public class UThread extends KThread {
 	process.saveState();
 
 	for (int i=0; i<Processor.numUserRegisters; i++)
-	    userRegisters[i] = Machine.processor().readRegister(i);
+	    userRegisters[i] = processor.readRegister(i);
 
 	super.saveState();
     }
@@ -52,7 +56,7 @@ public class UThread extends KThread {
 	super.restoreState();
 	
 	for (int i=0; i<Processor.numUserRegisters; i++)
-	    Machine.processor().writeRegister(i, userRegisters[i]);
+	    processor.writeRegister(i, userRegisters[i]);
 	
 	process.restoreState();
     }
@@ -72,4 +76,12 @@ public class UThread extends KThread {
      * The process to which this thread belongs.
      */
     public UserProcess process;
+
+    /**
+     * The processor this thread runs user code on.
+     */
+    public Processor processor;
+
+    /** The processor the next user thread will run on. */
+    private static int nextProcessor = 0;
 }
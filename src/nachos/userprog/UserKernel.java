@@ -1,13 +1,19 @@
 package nachos.userprog;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
 /**
  * A kernel that can support multiple user processes.
+ *
+ * <p>
+ * If the machine has more than one processor, each user thread is given one
+ * of them when it is created, in turn, and always runs on it, with that
+ * processor's registers and page table. Only one processor executes at a
+ * time: the kernel runs as if under one big lock, since a thread switch
+ * hands the host thread from one TCB to the next and kernel code keeps its
+ * mutual exclusion by disabling interrupts.
  */
 public class UserKernel extends ThreadedKernel {
     /**
@@ -19,29 +25,46 @@ public class UserKernel extends ThreadedKernel {
 
     /**
      * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * exception handler of every processor.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
 	
-	freePagesLock = new Lock();
-	freePages = new LinkedList<Integer>();
-	for (int i = 0; i < Machine.processor().getNumPhysPages(); i++)
-		freePages.add(i);
+	frameAllocator = new FrameAllocator(Machine.processor().getNumPhysPages());
+	pager = new Pager(Machine.processor().getNumPhysPages());
 	
-	Machine.processor().setExceptionHandler(new Runnable() {
-		public void run() { exceptionHandler(); }
-	    });
+	for (int cpu=0; cpu<Machine.numProcessors(); cpu++) {
+	    Machine.processor(cpu).setExceptionHandler(new Runnable() {
+		    public void run() { exceptionHandler(); }
+		});
+	}
+    }
+
+    /**
+     * Return the processor the current thread runs on: its own processor if
+     * it is a user thread, or otherwise processor 0.
+     *
+     * @return	the processor of the current thread.
+     */
+    public static Processor currentProcessor() {
+	KThread thread = KThread.currentThread();
+	if (thread instanceof UThread)
+	    return ((UThread) thread).processor;
+
+	return Machine.processor();
     }
 
     /**
-     * Test the console device.
+     * Test the frame allocator, the pager, and the console device.
      */	
     public void selfTest() {
 	super.selfTest();
 
+	FrameAllocator.selfTest();
+	Pager.selfTest();
+
 	System.out.println("Testing the console device. Typed characters");
 	System.out.println("will be echoed until q is typed.");
 
@@ -85,7 +108,7 @@ public class UserKernel extends ThreadedKernel {
 	Lib.assertTrue(KThread.currentThread() instanceof UThread);
 
 	UserProcess process = ((UThread) KThread.currentThread()).process;
-	int cause = Machine.processor().readRegister(Processor.regCause);
+	int cause = currentProcessor().readRegister(Processor.regCause);
 	process.handleException(cause);
     }
 
@@ -111,45 +134,27 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	pager.printStats();
+	pager.close();
+
+	if (Machine.numProcessors() > 1) {
+	    for (int cpu=0; cpu<Machine.numProcessors(); cpu++) {
+		System.out.println("Processor " + cpu + ": user ticks "
+				   + Machine.processor(cpu).getUserTicks());
+	    }
+	}
+
 	super.terminate();
     }
     
-    public static int[] requestPages(int quantity){
-    	freePagesLock.acquire();
-    	
-    	if (freePages.size()<quantity){
-    		freePagesLock.release();
-    		return null;
-    	}
-    	
-    	int[] pages = new int[quantity];
-    	
-    	for (int i = 0; i < quantity; i++){
-    		pages[i] = freePages.remove();
-    	}
-    	
-    	freePagesLock.release();
-    	return pages;
-    	
-    }
-    
-    public static int getNumberOfFreePages(){
-    	return freePages.size();
-    }
-    
-    public static void freePage(int index){
-    	freePagesLock.acquire();
-    	freePages.add(index);
-    	freePagesLock.release();
-    }
-
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
-    
-    
-    public static LinkedList<Integer> freePages;
-	public static Lock freePagesLock;
+
+    /** Allocates physical memory to user processes. */
+    public static FrameAllocator frameAllocator;
+    /** Pages user processes in and out of physical memory. */
+    public static Pager pager;
 }
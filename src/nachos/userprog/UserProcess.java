@@ -6,6 +6,7 @@ import nachos.userprog.*;
 
 import java.io.EOFException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -24,11 +25,6 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-        int numPhysPages = Machine.processor().getNumPhysPages();
-        pageTable = new TranslationEntry[numPhysPages];
-        for (int i=0; i<numPhysPages; i++)
-            pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
-        
         descriptorManager = new DescriptorManager();
         descriptorManager.add(0, UserKernel.console.openForReading());
         descriptorManager.add(1, UserKernel.console.openForWriting());
@@ -56,6 +52,10 @@ public class UserProcess {
     public boolean execute(String name, String[] args) {
     if (!load(name, args))
         return false;
+
+    boolean intStatus = Machine.interrupt().disable();
+    numProcesses++;
+    Machine.interrupt().restore(intStatus);
     
     new UThread(this).setName(name).fork();
 
@@ -74,7 +74,7 @@ public class UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-    Machine.processor().setPageTable(pageTable);
+    UserKernel.currentProcessor().setPageTable(pageTable);
     }
 
     /**
@@ -134,26 +134,7 @@ public class UserProcess {
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset,
                  int length) {
-	    Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-	
-	    byte[] memory = Machine.processor().getMemory();
-	    
-	    int vpn = Processor.pageFromAddress(vaddr);//vaddr/pageSize
-	    
-		int voffset = Processor.offsetFromAddress(vaddr);//vaddr % pageSize
-		
-		TranslationEntry entry = pageTable[vpn];
-		entry.used = true;//error, por eso sobre escribe
-		int paddr = entry.ppn * pageSize + voffset;//physical page addr * tamanio + offset
-
-		// validacion de puntero
-		if (paddr < 0 || paddr >= memory.length || !entry.valid)
-		    return 0;
-	
-	    int amount = Math.min(length, memory.length-paddr);
-	    System.arraycopy(memory, vaddr, data, offset, amount);
-	
-	    return amount;
+    return copyVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -185,28 +166,172 @@ public class UserProcess {
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset,
                   int length) {
-	    Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-	
-	    byte[] memory = Machine.processor().getMemory();
-	    
-	    int vpn = Processor.pageFromAddress(vaddr);//vaddr/pageSize
-	    
-		int voffset = Processor.offsetFromAddress(vaddr);//vaddr % pageSize
-		
-		TranslationEntry entry = pageTable[vpn];
-		entry.used = true;//error, por eso sobre escribe
-		int paddr = entry.ppn * pageSize + voffset;//physical page addr * tamanio + offset
-
-		// validacion de puntero, permisos de lectura
-		if (paddr < 0 || paddr >= memory.length || !entry.valid || entry.readOnly)
-		    return 0;
-
-		entry.dirty = true;
-		int amount = Math.min(length, memory.length-paddr);
-		
-	    System.arraycopy(data, offset, memory, vaddr, amount);
-	
-	    return amount;
+    return copyVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Transfer data between this process's virtual memory and the specified
+     * array, a page at a time. Each page is translated once, and pages that
+     * are also contiguous in physical memory are copied with a single
+     * <tt>arraycopy()</tt>. The transfer stops at the first page that is not
+     * valid, or that is read-only when writing. Every page transferred is
+     * marked used, and also dirty when writing.
+     *
+     * @param   vaddr   the first byte of virtual memory to transfer.
+     * @param   data    the array to transfer to or from.
+     * @param   offset  the first byte of the array to transfer.
+     * @param   length  the number of bytes to transfer.
+     * @param   write   <tt>true</tt> to transfer from the array to virtual
+     *          memory, <tt>false</tt> for the other way.
+     * @return  the number of bytes successfully transferred.
+     */
+    private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+                  int length, boolean write) {
+    Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
+
+    byte[] memory = Machine.processor().getMemory();
+
+    int amount = 0;
+    // the run of physical memory found so far but not yet copied
+    int runStart = 0, runLength = 0;
+
+    while (amount + runLength < length) {
+        int addr = vaddr + amount + runLength;
+
+        // stop at the end of the address space, even if the address wraps
+        if (addr < vaddr)
+        break;
+
+        // finish the run before a fault, so its frames can be evicted
+        int vpn = Processor.pageFromAddress(addr);
+        if (runLength > 0 && vpn < pageTable.length && !pageTable[vpn].valid) {
+        copyRun(memory, runStart, data, offset + amount, runLength, write);
+        amount += runLength;
+        runLength = 0;
+        }
+
+        int paddr = translate(addr, write);
+        if (paddr == -1)
+        break;
+
+        int bytes = Math.min(length - amount - runLength,
+                 pageSize - Processor.offsetFromAddress(addr));
+
+        // a page that does not continue the run ends it
+        if (runLength > 0 && paddr != runStart + runLength) {
+        copyRun(memory, runStart, data, offset + amount, runLength, write);
+        amount += runLength;
+        runLength = 0;
+        }
+
+        if (runLength == 0)
+        runStart = paddr;
+        runLength += bytes;
+    }
+
+    if (runLength > 0) {
+        copyRun(memory, runStart, data, offset + amount, runLength, write);
+        amount += runLength;
+    }
+
+    return amount;
+    }
+
+    /**
+     * Copy a run of physical memory to or from the specified array, and unpin
+     * its frames.
+     */
+    private void copyRun(byte[] memory, int paddr, byte[] data, int offset,
+             int length, boolean write) {
+    if (write)
+        System.arraycopy(data, offset, memory, paddr, length);
+    else
+        System.arraycopy(memory, paddr, data, offset, length);
+
+    UserKernel.pager.unpin(paddr, length);
+    }
+
+    /**
+     * Translate a virtual address in this process to a physical address, and
+     * mark its page used, and also dirty when writing. The page is loaded if
+     * it is not resident, and its frame stays pinned until the caller unpins
+     * it with <tt>Pager.unpin()</tt>.
+     *
+     * @param   vaddr   the virtual address to translate.
+     * @param   write   <tt>true</tt> if the address is to be written.
+     * @return  the physical address, or -1 if the page could not be loaded,
+     *          or is read-only and <i>write</i> is <tt>true</tt>.
+     */
+    private int translate(int vaddr, boolean write) {
+    int vpn = Processor.pageFromAddress(vaddr);
+    if (vpn >= pageTable.length)
+        return -1;
+
+    // the kernel touching a page loads it, just as the program would
+    TranslationEntry entry = pageTable[vpn];
+    int ppn = UserKernel.pager.pin(this, vpn);
+    if (ppn == -1)
+        return -1;
+
+    if (write && entry.readOnly) {
+        UserKernel.pager.unpin(ppn*pageSize, 0);
+        return -1;
+    }
+
+    entry.used = true;
+    if (write)
+        entry.dirty = true;
+
+    return ppn*pageSize + Processor.offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Return how many of the <i>length</i> bytes of virtual memory starting
+     * at <i>vaddr</i>, which translates to <i>paddr</i>, are in one run of
+     * physical memory. The pages of the run after the first are translated
+     * as by <tt>translate()</tt>, so every frame of the run is pinned.
+     *
+     * @param   vaddr   the first byte of virtual memory.
+     * @param   paddr   the physical address of <i>vaddr</i>.
+     * @param   length  the number of bytes wanted.
+     * @param   write   <tt>true</tt> if the bytes are to be written.
+     * @return  the number of bytes in the run.
+     */
+    private int contiguousLength(int vaddr, int paddr, int length,
+                 boolean write) {
+    int run = Math.min(length, pageSize - Processor.offsetFromAddress(vaddr));
+
+    while (run < length) {
+        int addr = vaddr + run;
+        if (addr < vaddr)
+        break;
+
+        int next = translate(addr, write);
+        if (next != paddr + run) {
+        if (next != -1)
+            UserKernel.pager.unpin(next, 0);
+        break;
+        }
+
+        run = Math.min(length, run + pageSize);
+    }
+
+    return run;
+    }
+
+    /**
+     * Return this process's bounce buffer, first making sure it holds at
+     * least <i>length</i> bytes. Syscalls use it to transfer a user buffer
+     * that is not in one run of physical memory.
+     *
+     * @param   length  the number of bytes needed.
+     * @return  the bounce buffer.
+     */
+    private byte[] getBounceBuffer(int length) {
+    if (bounceBuffer.length < length)
+        bounceBuffer = new byte[Math.max(length, bounceBuffer.length*2)];
+
+    return bounceBuffer;
     }
 
     /**
@@ -298,48 +423,93 @@ public class UserProcess {
     }
 
     /**
-     * Allocates memory for this process, and loads the COFF sections into
-     * memory. If this returns successfully, the process will definitely be
-     * run (this is the last step in process initialization that can fail).
+     * Sets up this process's page table, with every page invalid. Pages are
+     * loaded from the COFF sections, or zero-filled, only when they are first
+     * touched, so the process can be larger than physical memory. If this
+     * returns successfully, the process will definitely be run (this is the
+     * last step in process initialization that can fail).
      *
      * @return  <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-    if (numPages > Machine.processor().getNumPhysPages() || numPages > UserKernel.getNumberOfFreePages()) {
-        coff.close();
-        Lib.debug(dbgProcess, "\tinsufficient physical memory");
+    pageTable = new TranslationEntry[numPages];
+    for (int vpn=0; vpn<numPages; vpn++)
+        pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+                          false, false);
+
+    swapSlots = new int[numPages];
+    Arrays.fill(swapSlots, -1);
+
+    return true;
+    }
+
+    /**
+     * Release any resources allocated by <tt>loadSections()</tt>, and the
+     * frames and swap slots of the pages that have been loaded since.
+     */
+    protected void unloadSections() {
+    UserKernel.pager.release(this);
+
+    coff.close();
+    }
+
+    /**
+     * Load the specified page of this process into a frame and make it valid,
+     * evicting another page if no frame is free. A page that was evicted
+     * dirty is read back from the swap file; otherwise a page of a COFF
+     * section is read from the executable, and a page of the stack or the
+     * arguments starts out zeroed.
+     *
+     * @param   vpn     the virtual page to load.
+     * @return  <tt>true</tt> if the page is now valid, or <tt>false</tt> if
+     *          it is outside the address space or could not be loaded.
+     */
+    protected boolean handlePageFault(int vpn) {
+    if (vpn < 0 || vpn >= pageTable.length)
         return false;
+
+    return UserKernel.pager.pageIn(this, vpn);
     }
 
-    // load sections
-    for (int s=0; s<coff.getNumSections(); s++) {
-        CoffSection section = coff.getSection(s);
-        
-        Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-              + " section (" + section.getLength() + " pages)");
-        
-        int[] ppns = UserKernel.requestPages(section.getLength());
-        if (ppns == null) return false;//tamanio malo
-
-        for (int i=0; i<section.getLength(); i++) {
-	        int vpn = section.getFirstVPN()+i;
-	        TranslationEntry entry = pageTable[vpn];
-	
-	        entry.ppn = ppns[i];
-	        entry.valid = true;
-			entry.readOnly = section.isReadOnly();
-			section.loadPage(i, entry.ppn);
-        }
+    /**
+     * Fill the specified frame with the initial contents of the specified
+     * page: from its COFF section, or zeros for the stack and arguments.
+     *
+     * @param   vpn     the virtual page.
+     * @param   ppn     the frame to fill.
+     */
+    protected void loadPage(int vpn, int ppn) {
+    CoffSection section = getSection(vpn);
+
+    if (section != null) {
+        Lib.debug(dbgProcess, "\tloading page " + vpn + " from "
+              + section.getName());
+        section.loadPage(vpn - section.getFirstVPN(), ppn);
+    }
+    else {
+        byte[] memory = Machine.processor().getMemory();
+        Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
     }
-    
-    return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Return the COFF section containing the specified page.
+     *
+     * @param   vpn     the virtual page.
+     * @return  the section, or <tt>null</tt> if the page belongs to the stack
+     *          or the arguments.
      */
-    protected void unloadSections() {
-    }    
+    protected CoffSection getSection(int vpn) {
+    for (int s=0; s<coff.getNumSections(); s++) {
+        CoffSection section = coff.getSection(s);
+        int firstVPN = section.getFirstVPN();
+
+        if (vpn >= firstVPN && vpn < firstVPN + section.getLength())
+        return section;
+    }
+
+    return null;
+    }
 
     /**
      * Initialize the processor's registers in preparation for running the
@@ -349,7 +519,7 @@ public class UserProcess {
      * and initialize all other registers to 0.
      */
     public void initRegisters() {
-    Processor processor = Machine.processor();
+    Processor processor = UserKernel.currentProcessor();
 
     // by default, everything's 0
     for (int i=0; i<processor.numUserRegisters; i++)
@@ -369,9 +539,9 @@ public class UserProcess {
      */
     private int handleHalt() {
 
-    Machine.halt();
+    Kernel.kernel.terminate();
     
-    Lib.assertNotReached("Machine.halt() did not halt machine!");
+    Lib.assertNotReached("Kernel.terminate() did not halt machine!");
     return 0;
     }
     
@@ -402,13 +572,27 @@ public class UserProcess {
         
         if (buffer < 0 || length < 0) return -1;
         
-        byte space[] = new byte[length];
+        length = Math.min(length, Math.max(0, getAddressSpaceEnd() - buffer));
+        
+        // read straight into memory if the buffer is one physical run
+        int paddr = translate(buffer, true);
+        if (paddr != -1) {
+            int run = contiguousLength(buffer, paddr, length, true);
+            int val = -1;
+            if (run == length)
+                val = file.read(Machine.processor().getMemory(), paddr, length);
+            UserKernel.pager.unpin(paddr, run);
+            if (run == length)
+                return val;
+        }
+        
+        byte[] bounce = getBounceBuffer(length);
         
-        int val = file.read(space, 0, length);
+        int val = file.read(bounce, 0, length);
         
         if (val == -1) return -1;
         
-        return writeVirtualMemory(buffer, space, 0, val);
+        return writeVirtualMemory(buffer, bounce, 0, val);
         
     }
     
@@ -419,14 +603,36 @@ public class UserProcess {
         
         if (buffer < 0 || length < 0) return -1;
         
-        byte read[] = new byte[length];
+        length = Math.min(length, Math.max(0, getAddressSpaceEnd() - buffer));
+        
+        // write straight from memory if the buffer is one physical run
+        int paddr = translate(buffer, false);
+        if (paddr != -1) {
+            int run = contiguousLength(buffer, paddr, length, false);
+            int val = -1;
+            if (run == length)
+                val = file.write(Machine.processor().getMemory(), paddr, length);
+            UserKernel.pager.unpin(paddr, run);
+            if (run == length)
+                return val;
+        }
+        
+        byte[] bounce = getBounceBuffer(length);
         
-        int val = readVirtualMemory(buffer,read, 0, length);
+        int val = readVirtualMemory(buffer, bounce, 0, length);
         
-        return file.write(read, 0, val);
+        return file.write(bounce, 0, val);
         
     }
     
+    /**
+     * Return the first virtual address past the end of this process's
+     * address space. Nothing at or beyond it can be transferred.
+     */
+    private int getAddressSpaceEnd() {
+        return pageTable.length*pageSize;
+    }
+    
     private int handleClose(int index){
         return descriptorManager.close(index);
     }
@@ -559,7 +765,7 @@ public class UserProcess {
      * @param   cause   the user exception that occurred.
      */
     public void handleException(int cause) {
-    Processor processor = Machine.processor();
+    Processor processor = UserKernel.currentProcessor();
 
     switch (cause) {
     case Processor.exceptionSyscall:
@@ -573,6 +779,19 @@ public class UserProcess {
         processor.advancePC();
         break;                     
                        
+    case Processor.exceptionPageFault:
+        // the faulting instruction runs again once the page is valid
+        int vaddr = processor.readRegister(Processor.regBadVAddr);
+        int vpn = Processor.pageFromAddress(vaddr);
+        if (handlePageFault(vpn))
+            break;
+
+        // a bad address, or no frame for the page
+        Lib.debug(dbgProcess, "Cannot load page " + vpn + " at address "
+              + vaddr + ", terminating");
+        terminate();
+        break;
+
     default:
         Lib.debug(dbgProcess, "Unexpected exception: " +
               Processor.exceptionNames[cause]);
@@ -580,11 +799,38 @@ public class UserProcess {
     }
     }
 
+    /**
+     * Terminate this process, which cannot go on running: close its files,
+     * free its memory and finish its thread. Other processes keep running;
+     * when the last one is terminated, so is the kernel. Never returns.
+     */
+    protected void terminate() {
+    for (int i=0; i<descriptorManager.length; i++)
+        descriptorManager.close(i);
+
+    unloadSections();
+
+    boolean intStatus = Machine.interrupt().disable();
+    numProcesses--;
+    boolean last = (numProcesses == 0);
+    Machine.interrupt().restore(intStatus);
+
+    if (last)
+        Kernel.kernel.terminate();
+
+    KThread.finish();
+    }
+
     /** The program being run by this process. */
     protected Coff coff;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /**
+     * The swap slot holding each page, or -1 if the page has not been
+     * written to the swap file.
+     */
+    protected int[] swapSlots;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
@@ -593,9 +839,15 @@ public class UserProcess {
     
     protected DescriptorManager descriptorManager;
     
+    /** Holds syscall data that cannot be transferred in place. */
+    private byte[] bounceBuffer = new byte[pageSize];
+    
     private int initialPC, initialSP;
     private int argc, argv;
     
+    /** The number of processes that have been executed and not terminated. */
+    private static int numProcesses = 0;
+    
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
 }